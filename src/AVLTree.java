@@ -1,13 +1,21 @@
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 
-public class AVLTree<E extends Comparable<? super E>> {
+public class AVLTree<E extends Comparable<? super E>> implements Iterable<E> {
     private class Node {
         E value;
         Node parent;
         Node left;
         Node right;
         int height;
+        // Set in lazy delete mode when the value has been removed but the node not yet taken out of the tree
+        boolean isDeleted;
         Node(E value) {
             this.value = value;
         }
@@ -18,21 +26,73 @@ public class AVLTree<E extends Comparable<? super E>> {
 
         @Override
         public String toString() {
-            return "Node (" + left + ") " + value.toString() + " (" + right + ')';
+            // Lazily deleted nodes are still part of the structure, but their values are no longer in the tree
+            return "Node (" + left + ") " + (isDeleted ? "deleted" : value.toString()) + " (" + right + ')';
         }
     }
 
     boolean isNullInTree;
     // The root node of the tree
     Node root;
+    // The nodes with the smallest and largest values, kept up to date so the ends can be reached without a search
+    Node first;
+    Node last;
     int numElements;
+    // The number of nodes still in the tree that have been lazily deleted
+    int numDeleted;
+    final boolean IS_LAZY_DELETE;
+    final double MAX_DELETED_RATIO;
 
     AVLTree(Collection<E> collection) {
+        this();
         addAll(collection);
     }
 
     AVLTree() {
+        IS_LAZY_DELETE = false;
+        MAX_DELETED_RATIO = 0;
+    }
 
+    /**
+     * Creates a tree in lazy delete mode, where remove only marks the node as deleted rather than restructuring
+     * the tree around it. Once the deleted nodes make up more than the given share of the tree, the tree is
+     * rebuilt from the remaining nodes in linear time, so each remove costs amortised O(log n) with no rotations.
+     * @param maxDeletedRatio the share of the nodes in the tree that may be deleted before it is rebuilt, strictly
+     *                        between 0 and 1
+     */
+    AVLTree(double maxDeletedRatio) {
+        if (!(maxDeletedRatio > 0 && maxDeletedRatio < 1)) {
+            throw new IllegalArgumentException("Deleted ratio must be between 0 and 1, not " + maxDeletedRatio);
+        }
+        IS_LAZY_DELETE = true;
+        MAX_DELETED_RATIO = maxDeletedRatio;
+    }
+
+    /**
+     * Builds a perfectly balanced tree in linear time from values that are already sorted, rather than adding them
+     * one at a time
+     * @param sortedValues values in strictly ascending order, optionally starting with a null
+     * @return a tree containing exactly the given values
+     */
+    static <E extends Comparable<? super E>> AVLTree<E> fromSorted(List<E> sortedValues) {
+        AVLTree<E> tree = new AVLTree<>();
+        int from = 0;
+        if (!sortedValues.isEmpty() && sortedValues.get(0) == null) {
+            tree.isNullInTree = true;
+            tree.numElements++;
+            from++;
+        }
+        ArrayList<AVLTree<E>.Node> nodes = new ArrayList<>(sortedValues.size() - from);
+        for (E value : sortedValues.subList(from, sortedValues.size())) {
+            nodes.add(tree.new Node(value));
+        }
+        tree.root = tree.link(nodes, 0, nodes.size(), null);
+        if (!nodes.isEmpty()) {
+            tree.first = nodes.get(0);
+            tree.last = nodes.get(nodes.size() - 1);
+        }
+        tree.numElements += nodes.size();
+        return tree;
     }
 
     /**
@@ -62,10 +122,12 @@ public class AVLTree<E extends Comparable<? super E>> {
                 thisNode.parent = null;
                 thisNode.height = 1;
                 this.root = thisNode;
+                first = thisNode;
+                last = thisNode;
                 numElements++;
                 return true;
             } else {
-                return false;
+                return revive(this.root, value);
             }
         } else if (parent.value.compareTo(value) > 0) {
             thisNode = parent.left;
@@ -74,8 +136,11 @@ public class AVLTree<E extends Comparable<? super E>> {
                 parent.left = thisNode;
                 thisNode.parent = parent;
                 thisNode.height = 1;
+                if (parent == first) {
+                    first = thisNode;
+                }
             } else {
-                return false;
+                return revive(thisNode, value);
             }
         } else { // Can only be right side, as parent explicitly means that it isn't the value.
             thisNode = parent.right;
@@ -84,8 +149,11 @@ public class AVLTree<E extends Comparable<? super E>> {
                 parent.right = thisNode;
                 thisNode.parent = parent;
                 thisNode.height = 1;
+                if (parent == last) {
+                    last = thisNode;
+                }
             } else {
-                return false;
+                return revive(thisNode, value);
             }
         }
 
@@ -94,6 +162,23 @@ public class AVLTree<E extends Comparable<? super E>> {
         return true;
     }
 
+    /**
+     * Brings back a node that was lazily deleted when its value is added again
+     * @param node the node already holding the value
+     * @param value the value being added
+     * @return whether the value was added, false if the node was not deleted
+     */
+    private boolean revive(Node node, E value) {
+        if (!node.isDeleted) {
+            return false;
+        }
+        node.isDeleted = false;
+        node.value = value;
+        numDeleted--;
+        numElements++;
+        return true;
+    }
+
     boolean addAll(Collection<E> collection) {
         boolean isChanged = false;
         for (E elem : collection) {
@@ -276,6 +361,27 @@ public class AVLTree<E extends Comparable<? super E>> {
         return child;
     }
 
+    /**
+     * Links a sorted run of nodes into a perfectly balanced subtree, taking the middle node as the top of the subtree
+     * @param nodes nodes in ascending order of value
+     * @param from the index of the first node in the subtree
+     * @param to the index after the last node in the subtree
+     * @param parent the node the subtree hangs off, null for the root
+     * @return the top of the subtree, null if it is empty
+     */
+    private Node link(ArrayList<Node> nodes, int from, int to, Node parent) {
+        if (from >= to) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        Node node = nodes.get(middle);
+        node.parent = parent;
+        node.left = link(nodes, from, middle, node);
+        node.right = link(nodes, middle + 1, to, node);
+        node.recalcHeight();
+        return node;
+    }
+
     /**
      * Determines the balancing factor of a node
      * used to determine if a rotation needs to be performed on a node to balance the tree
@@ -372,12 +478,60 @@ public class AVLTree<E extends Comparable<? super E>> {
         return successor;
     }
 
+    /**
+     * Finds the node with the next largest value, walking up through the parents if there is no right subtree
+     * @param node a non-null node in the tree
+     * @return the next node in order, null if this is the largest
+     */
+    private Node nextInOrder(Node node) {
+        if (node.right != null) {
+            return successor(node);
+        }
+        Node child = node;
+        Node parent = node.parent;
+        while (parent != null && parent.right == child) {
+            child = parent;
+            parent = parent.parent;
+        }
+        return parent;
+    }
+
+    /**
+     * Finds the node with the next smallest value, walking up through the parents if there is no left subtree
+     * @param node a non-null node in the tree
+     * @return the previous node in order, null if this is the smallest
+     */
+    private Node previousInOrder(Node node) {
+        if (node.left != null) {
+            Node predecessor = node.left;
+            while (predecessor.right != null) {
+                predecessor = predecessor.right;
+            }
+            return predecessor;
+        }
+        Node child = node;
+        Node parent = node.parent;
+        while (parent != null && parent.left == child) {
+            child = parent;
+            parent = parent.parent;
+        }
+        return parent;
+    }
+
     /**
      *
      * @param node
      * @return
      */
     private Node deleteInternal(Node node) {
+        // The ends never have a child on their outer side, so their neighbours are at most a couple of steps away
+        if (node == first) {
+            first = nextInOrder(node);
+        }
+        if (node == last) {
+            last = previousInOrder(node);
+        }
+
         Node parent = node.parent;
         Node newChild;
         Node balanceUpParent;
@@ -395,14 +549,19 @@ public class AVLTree<E extends Comparable<? super E>> {
             // Need to go down subtree until an option is found
             // Right by choice
             newChild = successor(node);
-            balanceUpParent = newChild.parent;
             balanceUpChild = newChild.right;
-            balanceUpParent.left = balanceUpChild;
-            if (balanceUpChild != null) {
-                balanceUpChild.parent = newChild.parent;
+            if (newChild.parent == node) {
+                // The successor is the right child, so it keeps its own right subtree
+                balanceUpParent = newChild;
+            } else {
+                balanceUpParent = newChild.parent;
+                balanceUpParent.left = balanceUpChild;
+                if (balanceUpChild != null) {
+                    balanceUpChild.parent = balanceUpParent;
+                }
+                newChild.right = node.right;
+                node.right.parent = newChild;
             }
-            newChild.right = node.right;
-            node.right.parent = newChild;
             newChild.left = node.left;
             node.left.parent = newChild;
         }
@@ -450,10 +609,21 @@ public class AVLTree<E extends Comparable<? super E>> {
             node = parent.right;
         }
 
-        if (node == null) {
+        if (node == null || node.isDeleted) {
             return false;
         }
 
+        if (IS_LAZY_DELETE) {
+            node.isDeleted = true;
+            numDeleted++;
+            numElements--;
+            int numNodes = numElements - (isNullInTree ? 1 : 0) + numDeleted;
+            if (numDeleted > MAX_DELETED_RATIO * numNodes) {
+                rebuild();
+            }
+            return true;
+        }
+
         Node newChild = deleteInternal(node);
         numElements--;
         return true;
@@ -465,16 +635,265 @@ public class AVLTree<E extends Comparable<? super E>> {
         }
 
         Node parent = findParent(value);
+        Node node;
         if (parent == null) {
-            return root != null;
+            node = root;
         } else if (parent.value.compareTo(value) > 0) {
-            return parent.left != null;
+            node = parent.left;
         } else {
-            return parent.right != null;
+            node = parent.right;
         }
+        return node != null && !node.isDeleted;
+    }
+
+    /**
+     * Rebuilds the tree from the nodes that have not been lazily deleted, reusing the nodes and linking them into a
+     * perfectly balanced tree in linear time
+     */
+    private void rebuild() {
+        ArrayList<Node> nodes = new ArrayList<>(numElements);
+        for (Node node = first; node != null; node = nextInOrder(node)) {
+            if (!node.isDeleted) {
+                nodes.add(node);
+            }
+        }
+        root = link(nodes, 0, nodes.size(), null);
+        numDeleted = 0;
+        if (nodes.isEmpty()) {
+            first = null;
+            last = null;
+        } else {
+            first = nodes.get(0);
+            last = nodes.get(nodes.size() - 1);
+        }
+    }
+
+    /**
+     * Takes lazily deleted nodes off the ends of the tree, so that first and last hold values still in the tree.
+     * Each deleted node is only ever taken off once, so this is amortised O(1).
+     */
+    private void trimDeletedEnds() {
+        while (first != null && first.isDeleted) {
+            deleteInternal(first);
+            numDeleted--;
+        }
+        while (last != null && last.isDeleted) {
+            deleteInternal(last);
+            numDeleted--;
+        }
+    }
+
+    /**
+     * Finds the smallest value in the tree in O(1), for using the tree as a double-ended priority queue.
+     * The null value is not part of the ordering, so it is never returned even if it is in the tree.
+     * Never changes the tree, so in lazy delete mode it walks past any lazily deleted nodes at the end rather than
+     * taking them off, which is left to the next poll, and is only O(1) once they have been taken off.
+     * @return the smallest value, null if there are no non-null values in the tree
+     */
+    public E peekFirst() {
+        Node node = first;
+        while (node != null && node.isDeleted) {
+            node = nextInOrder(node);
+        }
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Finds the largest value in the tree in O(1), ignoring null and never changing the tree as in peekFirst
+     * @return the largest value, null if there are no non-null values in the tree
+     */
+    public E peekLast() {
+        Node node = last;
+        while (node != null && node.isDeleted) {
+            node = previousInOrder(node);
+        }
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Removes the smallest value from the tree, going straight to its node rather than searching for it.
+     * The null value is never removed, as in peekFirst.
+     * @return the value removed, null if there are no non-null values in the tree
+     */
+    public E pollFirst() {
+        trimDeletedEnds();
+        if (first == null) {
+            return null;
+        }
+        E value = first.value;
+        deleteInternal(first);
+        numElements--;
+        return value;
+    }
+
+    /**
+     * Removes the largest value from the tree, as in pollFirst
+     * @return the value removed, null if there are no non-null values in the tree
+     */
+    public E pollLast() {
+        trimDeletedEnds();
+        if (last == null) {
+            return null;
+        }
+        E value = last.value;
+        deleteInternal(last);
+        numElements--;
+        return value;
+    }
+
+    /**
+     * Removes up to n of the smallest values from the tree in ascending order, as in pollFirst
+     * @param n the most values to remove
+     * @param destination the array to put the values in, from index 0, with room for at least n values
+     * @return the number of values removed, less than n if the tree ran out of non-null values
+     */
+    public int pollFirst(int n, E[] destination) {
+        int numPolled = 0;
+        while (numPolled < n) {
+            trimDeletedEnds();
+            if (first == null) {
+                break;
+            }
+            destination[numPolled] = first.value;
+            deleteInternal(first);
+            numElements--;
+            numPolled++;
+        }
+        return numPolled;
+    }
+
+    /**
+     * Removes up to n of the largest values from the tree in descending order, as in pollFirst
+     * @param n the most values to remove
+     * @param destination the array to put the values in, from index 0, with room for at least n values
+     * @return the number of values removed, less than n if the tree ran out of non-null values
+     */
+    public int pollLast(int n, E[] destination) {
+        int numPolled = 0;
+        while (numPolled < n) {
+            trimDeletedEnds();
+            if (last == null) {
+                break;
+            }
+            destination[numPolled] = last.value;
+            deleteInternal(last);
+            numElements--;
+            numPolled++;
+        }
+        return numPolled;
     }
 
     public int size() {
         return numElements;
     }
+
+    /**
+     * Streams the values of the tree to a channel in ascending order
+     * @param channel the channel to write to
+     * @param codec the codec used to encode the values
+     * @throws IOException if the channel cannot be written to
+     */
+    public void writeTo(WritableByteChannel channel, ElementCodec<E> codec) throws IOException {
+        ElementWriter<E> writer = new ElementWriter<>(channel, codec, numElements);
+        for (E value : this) {
+            writer.write(value);
+        }
+        writer.finish();
+    }
+
+    /**
+     * Reads back a tree written by writeTo. The values arrive in order, so the tree is built in linear time with
+     * fromSorted rather than adding them one at a time.
+     * @param channel the channel to read from
+     * @param codec the codec used to decode the values
+     * @return a tree holding the same values
+     * @throws IOException if the channel cannot be read from, ends or is corrupt part way through, or holds values
+     * out of strictly ascending order
+     */
+    static <E extends Comparable<? super E>> AVLTree<E> readFrom(ReadableByteChannel channel, ElementCodec<E> codec)
+            throws IOException {
+        ElementReader<E> reader = new ElementReader<>(channel, codec);
+        ArrayList<E> values = new ArrayList<>(reader.presize());
+        while (reader.nextChunk() > 0) {
+            int checkedTo = Math.max(values.size(), 1);
+            reader.decodeChunk(values);
+            for (int i = checkedTo; i < values.size(); i++) {
+                E previous = values.get(i - 1);
+                E value = values.get(i);
+                if (value == null || (previous != null && previous.compareTo(value) >= 0)) {
+                    throw new IOException("Stream is not in strictly ascending order at value " + i);
+                }
+            }
+        }
+        return fromSorted(values);
+    }
+
+    /**
+     * Iterates through the values of the tree in ascending order, starting with null if it is in the tree
+     * @return an iterator over the values in the tree
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new TreeIterator();
+    }
+
+    /**
+     * Iterates through the values of the tree greater than a given value in ascending order, so a walk through the
+     * tree can be picked up again after the tree has changed
+     * @param value the value to start after, a non-null value which need not be in the tree
+     * @return an iterator over the values in the tree greater than the value
+     */
+    Iterator<E> iteratorAfter(E value) {
+        Node node = root;
+        Node higher = null;
+        while (node != null) {
+            if (node.value.compareTo(value) > 0) {
+                higher = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return new TreeIterator(false, higher);
+    }
+
+    private class TreeIterator implements Iterator<E> {
+        boolean isNullNext;
+        Node next;
+
+        TreeIterator() {
+            this(isNullInTree, first);
+        }
+
+        TreeIterator(boolean isNullNext, Node next) {
+            this.isNullNext = isNullNext;
+            this.next = skipDeleted(next);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return isNullNext || next != null;
+        }
+
+        @Override
+        public E next() {
+            if (isNullNext) {
+                isNullNext = false;
+                return null;
+            }
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            E value = next.value;
+            next = skipDeleted(nextInOrder(next));
+            return value;
+        }
+
+        private Node skipDeleted(Node node) {
+            while (node != null && node.isDeleted) {
+                node = nextInOrder(node);
+            }
+            return node;
+        }
+    }
 }
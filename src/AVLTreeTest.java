@@ -1,7 +1,12 @@
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -165,6 +170,14 @@ class AVLTreeTest {
         Assertions.assertFalse(tree.remove(36));
         Assertions.assertFalse(tree.remove(0));
 
+        // Test removing a node whose successor is its right child
+        AVLTree<Integer> smallTree = new AVLTree<>();
+        smallTree.add(2);
+        smallTree.add(1);
+        smallTree.add(3);
+        Assertions.assertTrue(smallTree.remove(2));
+        Assertions.assertEquals("AVLTree (has null : false) (Node (Node (null) 1 (null)) 3 (null))", smallTree.toString());
+        Assertions.assertTrue(smallTree.isBalanced());
 
         // Test the extreme case
         IntStream.range(0, 10000).forEach(tree::add);
@@ -181,6 +194,172 @@ class AVLTreeTest {
         }
     }
 
+    @Test
+    void lazyDelete() {
+        // Rebuild once more than half of the nodes are deleted
+        AVLTree<Integer> tree = new AVLTree<>(0.5);
+        IntStream.range(0, 100).forEach(tree::add);
+
+        // Test removed values are skipped, without restructuring the tree
+        Object root = tree.root;
+        for (int i = 0; i < 50; i++) {
+            Assertions.assertTrue(tree.remove(i));
+            Assertions.assertFalse(tree.remove(i));
+            Assertions.assertFalse(tree.contains(i));
+        }
+        Assertions.assertSame(root, tree.root);
+        Assertions.assertTrue(tree.isBalanced());
+        Assertions.assertFalse(tree.toString().contains(" 0 "));
+        Assertions.assertEquals(50, tree.size());
+        Assertions.assertEquals(50, tree.numDeleted);
+        Collection<Integer> values = new ArrayList<>();
+        tree.forEach(values::add);
+        Assertions.assertEquals(IntStream.range(50, 100).boxed().collect(Collectors.toList()), values);
+
+        // Test adding a deleted value brings it back
+        Assertions.assertTrue(tree.add(10));
+        Assertions.assertFalse(tree.add(10));
+        Assertions.assertTrue(tree.contains(10));
+        Assertions.assertEquals(51, tree.size());
+        Assertions.assertEquals(49, tree.numDeleted);
+
+        // Test passing the threshold rebuilds the tree from the remaining values
+        Assertions.assertTrue(tree.remove(50));
+        Assertions.assertEquals(50, tree.numDeleted);
+        Assertions.assertTrue(tree.remove(51));
+        Assertions.assertEquals(0, tree.numDeleted);
+        for (int i = 52; i < 60; i++) {
+            Assertions.assertTrue(tree.remove(i));
+        }
+        Assertions.assertEquals(8, tree.numDeleted);
+        Assertions.assertEquals(41, tree.size());
+        Assertions.assertTrue(tree.isBalanced());
+        Assertions.assertTrue(tree.contains(10));
+        Assertions.assertTrue(tree.contains(99));
+        Assertions.assertFalse(tree.contains(55));
+
+        // Test the extreme case
+        tree = new AVLTree<>(0.25);
+        IntStream.range(0, 10000).forEach(tree::add);
+        for (int i = 0; i < 10000; i++) {
+            Assertions.assertTrue(tree.remove(i));
+            Assertions.assertEquals(9999 - i, tree.size());
+        }
+        Assertions.assertTrue(tree.isBalanced());
+        Assertions.assertFalse(tree.iterator().hasNext());
+
+        // Test ratios that could never or would always rebuild are rejected
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new AVLTree<Integer>(0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new AVLTree<Integer>(1));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new AVLTree<Integer>(Double.NaN));
+    }
+
+    @Test
+    void priorityQueue() {
+        // Test empty tree, with null not counting as an end
+        AVLTree<Integer> tree = new AVLTree<>();
+        tree.add(null);
+        Assertions.assertNull(tree.peekFirst());
+        Assertions.assertNull(tree.pollLast());
+        Assertions.assertEquals(1, tree.size());
+
+        // Test the ends are kept up to date as values are added and rotated
+        tree.add(10);
+        Assertions.assertEquals(10, tree.peekFirst());
+        Assertions.assertEquals(10, tree.peekLast());
+        tree.add(5);
+        tree.add(2);
+        tree.add(1);
+        tree.add(15);
+        tree.add(16);
+        tree.add(23);
+        Assertions.assertEquals(1, tree.peekFirst());
+        Assertions.assertEquals(23, tree.peekLast());
+
+        // Test the ends are kept up to date as values are removed
+        Assertions.assertTrue(tree.remove(1));
+        Assertions.assertTrue(tree.remove(23));
+        Assertions.assertEquals(2, tree.peekFirst());
+        Assertions.assertEquals(16, tree.peekLast());
+        Assertions.assertEquals(2, tree.pollFirst());
+        Assertions.assertEquals(16, tree.pollLast());
+        Assertions.assertEquals(5, tree.peekFirst());
+        Assertions.assertEquals(15, tree.peekLast());
+        Assertions.assertEquals(4, tree.size());
+        Assertions.assertTrue(tree.isBalanced());
+
+        // Test bulk polling stops when the tree runs out
+        Integer[] polled = new Integer[5];
+        Assertions.assertEquals(3, tree.pollFirst(5, polled));
+        Assertions.assertArrayEquals(new Integer[] {5, 10, 15, null, null}, polled);
+        Assertions.assertNull(tree.peekFirst());
+        Assertions.assertEquals(1, tree.size());
+
+        // Test lazily deleted values are skipped at the ends
+        tree = new AVLTree<>(0.5);
+        IntStream.range(0, 10).forEach(tree::add);
+        tree.remove(0);
+        tree.remove(9);
+        Object root = tree.root;
+        Assertions.assertEquals(1, tree.peekFirst());
+        Assertions.assertEquals(8, tree.peekLast());
+
+        // Test peeking leaves the deleted nodes for the next poll to take off
+        Assertions.assertSame(root, tree.root);
+        Assertions.assertEquals(2, tree.numDeleted);
+        Assertions.assertEquals(1, tree.pollFirst());
+        Assertions.assertEquals(8, tree.pollLast());
+        Assertions.assertEquals(0, tree.numDeleted);
+        Assertions.assertTrue(tree.isBalanced());
+
+        // Test the extreme case
+        tree = AVLTree.fromSorted(IntStream.range(0, 10000).boxed().collect(Collectors.toList()));
+        polled = new Integer[100];
+        for (int i = 0; i < 4900; i += 100) {
+            Assertions.assertEquals(100, tree.pollFirst(100, polled));
+            Assertions.assertEquals(i, polled[0]);
+            Assertions.assertEquals(i + 99, polled[99]);
+        }
+        for (int i = 9999; i >= 4900; i--) {
+            Assertions.assertEquals(i, tree.pollLast());
+            Assertions.assertTrue(tree.isBalanced());
+        }
+        Assertions.assertEquals(0, tree.size());
+    }
+
+    @Test
+    void streaming() throws IOException {
+        AVLTree<String> tree = new AVLTree<>();
+        IntStream.range(0, 20000).forEach(i -> tree.add("value " + i));
+        tree.add(null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tree.writeTo(Channels.newChannel(out), ElementCodec.STRING);
+
+        // Test the tree comes back with the same values, balanced
+        AVLTree<String> copy = AVLTree.readFrom(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())),
+                ElementCodec.STRING);
+        Assertions.assertEquals(20001, copy.size());
+        Assertions.assertTrue(copy.isBalanced());
+        Collection<String> values = new ArrayList<>();
+        Collection<String> copyValues = new ArrayList<>();
+        tree.forEach(values::add);
+        copy.forEach(copyValues::add);
+        Assertions.assertEquals(values, copyValues);
+
+        // Test a stream cut off part way through
+        byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() / 2);
+        Assertions.assertThrows(IOException.class, () -> AVLTree.readFrom(
+                Channels.newChannel(new ByteArrayInputStream(truncated)), ElementCodec.STRING));
+
+        // Test a stream of values out of order, like one written by an ArrayStack
+        ArrayStack<Integer> stack = new ArrayStack<>();
+        stack.pushArray(new Integer[]{5, 1, 9, 3, 7});
+        ByteArrayOutputStream unsorted = new ByteArrayOutputStream();
+        stack.writeTo(Channels.newChannel(unsorted), ElementCodec.INTEGER);
+        Assertions.assertThrows(IOException.class, () -> AVLTree.readFrom(
+                Channels.newChannel(new ByteArrayInputStream(unsorted.toByteArray())), ElementCodec.INTEGER));
+    }
+
     @Test
     void addAll() {
         AVLTree<Integer> tree = new AVLTree<>();
@@ -225,5 +404,40 @@ class AVLTreeTest {
         Assertions.assertEquals(10000, tree.size());
     }
 
+    @Test
+    void iterator() {
+        // Test empty tree
+        AVLTree<Integer> tree = new AVLTree<>();
+        Assertions.assertFalse(tree.iterator().hasNext());
 
+        // Test values come out in order, with null first
+        Collection<Integer> collection = IntStream.range(0, 1000).map(i -> i * 7 % 1000).boxed()
+                .collect(Collectors.toList());
+        tree.addAll(collection);
+        tree.add(null);
+        Collection<Integer> values = new ArrayList<>();
+        tree.forEach(values::add);
+        Collection<Integer> expected = new ArrayList<>();
+        expected.add(null);
+        IntStream.range(0, 1000).forEach(expected::add);
+        Assertions.assertEquals(expected, values);
+    }
+
+    @Test
+    void fromSorted() {
+        // Test null handling
+        AVLTree<Integer> tree = AVLTree.fromSorted(new ArrayList<>(Arrays.asList(null, 1, 2, 3)));
+        Assertions.assertEquals("AVLTree (has null : true) (Node (Node (null) 1 (null)) 2 (Node (null) 3 (null)))", tree.toString());
+        Assertions.assertEquals(4, tree.size());
+
+        // Test the extreme case, which should still balance and accept changes
+        tree = AVLTree.fromSorted(IntStream.range(0, 10000).boxed().collect(Collectors.toList()));
+        Assertions.assertTrue(tree.isBalanced());
+        Assertions.assertEquals(10000, tree.size());
+        Assertions.assertTrue(tree.contains(9999));
+        Assertions.assertFalse(tree.add(5000));
+        Assertions.assertTrue(tree.remove(5000));
+        Assertions.assertTrue(tree.add(10000));
+        Assertions.assertTrue(tree.isBalanced());
+    }
 }
\ No newline at end of file
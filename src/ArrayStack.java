@@ -1,3 +1,6 @@
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.Collection;
 import java.util.EmptyStackException;
 
@@ -30,8 +33,12 @@ public class ArrayStack<E> extends Stack<E> {
     }
 
     public void pushArray(E[] values) {
+        pushArray(values, 0, values.length);
+    }
+
+    public void pushArray(E[] values, int offset, int length) {
         int newLength = elements.length;
-        while (endStack + values.length > newLength) {
+        while (endStack + length > newLength) {
             newLength = (int) (newLength * (1 + GROWTH_FACTOR));
         }
         if (newLength != elements.length) {
@@ -39,8 +46,8 @@ public class ArrayStack<E> extends Stack<E> {
             elements = (E[]) new Object[newLength];
             System.arraycopy(oldElements, 0, elements, 0, endStack);
         }
-        System.arraycopy(values, 0, elements, endStack, values.length);
-        endStack += values.length;
+        System.arraycopy(values, offset, elements, endStack, length);
+        endStack += length;
     }
     @Override
     public void pushAll(Collection<E> values) {
@@ -82,4 +89,41 @@ public class ArrayStack<E> extends Stack<E> {
             return elem;
         }
     }
+
+    /**
+     * Streams the stack to a channel from bottom to top, encoding straight out of the backing array without copying
+     * it first
+     * @param channel the channel to write to
+     * @param codec the codec used to encode the values
+     * @throws IOException if the channel cannot be written to
+     */
+    public void writeTo(WritableByteChannel channel, ElementCodec<E> codec) throws IOException {
+        ElementWriter<E> writer = new ElementWriter<>(channel, codec, endStack);
+        for (int i = 0; i < endStack; i++) {
+            writer.write(elements[i]);
+        }
+        writer.finish();
+    }
+
+    /**
+     * Reads back a stack written by writeTo, pushing each chunk on in a single pushArray
+     * @param channel the channel to read from
+     * @param codec the codec used to decode the values
+     * @return a stack holding the same values in the same order
+     * @throws IOException if the channel cannot be read from, or ends or is corrupt part way through
+     */
+    static <E> ArrayStack<E> readFrom(ReadableByteChannel channel, ElementCodec<E> codec) throws IOException {
+        ElementReader<E> reader = new ElementReader<>(channel, codec);
+        ArrayStack<E> stack = new ArrayStack<>(Math.max(reader.presize(), 16), 1);
+        E[] chunk = (E[]) new Object[0];
+        int numInChunk;
+        while ((numInChunk = reader.nextChunk()) > 0) {
+            if (chunk.length < numInChunk) {
+                chunk = (E[]) new Object[numInChunk];
+            }
+            reader.decodeChunk(chunk);
+            stack.pushArray(chunk, 0, numInChunk);
+        }
+        return stack;
+    }
 }
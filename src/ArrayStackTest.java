@@ -0,0 +1,71 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+class ArrayStackTest {
+    @Test
+    void streaming() throws IOException {
+        // Test an empty stack
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ArrayStack<Long>().writeTo(Channels.newChannel(out), ElementCodec.LONG);
+        ArrayStack<Long> copy = ArrayStack.readFrom(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())),
+                ElementCodec.LONG);
+        Assertions.assertEquals(0, copy.size());
+
+        // Test a stack spanning many chunks, with nulls in it
+        ArrayStack<Long> stack = new ArrayStack<>();
+        for (long i = 0; i < 50000; i++) {
+            stack.push(i % 1000 == 0 ? null : i);
+        }
+        out = new ByteArrayOutputStream();
+        stack.writeTo(Channels.newChannel(out), ElementCodec.LONG);
+        copy = ArrayStack.readFrom(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())), ElementCodec.LONG);
+        Assertions.assertEquals(50000, copy.size());
+        for (long i = 49999; i >= 0; i--) {
+            Assertions.assertEquals(i % 1000 == 0 ? null : i, copy.pop());
+        }
+
+        // Test a stream whose header claims a negative number of values
+        out = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        header.putInt(-1);
+        header.flip();
+        Frames.write(Channels.newChannel(out), header);
+        byte[] negative = out.toByteArray();
+        Assertions.assertThrows(IOException.class, () -> ArrayStack.readFrom(
+                Channels.newChannel(new ByteArrayInputStream(negative)), ElementCodec.LONG));
+
+        // Test chunks that pass their checksum but hold fewer or more values than they claim
+        Assertions.assertThrows(IOException.class, () -> ArrayStack.readFrom(
+                Channels.newChannel(new ByteArrayInputStream(streamOfOneChunk(2, 1))), ElementCodec.LONG));
+        Assertions.assertThrows(IOException.class, () -> ArrayStack.readFrom(
+                Channels.newChannel(new ByteArrayInputStream(streamOfOneChunk(1, 2))), ElementCodec.LONG));
+    }
+
+    /**
+     * @param numClaimed the number of values the stream and its chunk claim to hold
+     * @param numWritten the number of values actually written into the chunk
+     * @return a stream of one chunk of longs
+     */
+    private byte[] streamOfOneChunk(int numClaimed, int numWritten) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        header.putInt(numClaimed);
+        header.flip();
+        Frames.write(Channels.newChannel(out), header);
+        ByteBuffer chunk = ByteBuffer.allocate(Integer.BYTES + numWritten * (1 + Long.BYTES));
+        chunk.putInt(numClaimed);
+        for (int i = 0; i < numWritten; i++) {
+            chunk.put((byte) 1);
+            chunk.putLong(i);
+        }
+        chunk.flip();
+        Frames.write(Channels.newChannel(out), chunk);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,408 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An AVLTree with a smaller node layout, for holding very large numbers of values.
+ * Nodes keep no parent reference and no reference back to the tree, and store the balance factor in a byte rather
+ * than the height in an int. Without parents, add and remove record the nodes they pass through on the way down
+ * and rebalance back up along that path instead.
+ * On a 64-bit JVM with compressed references each node takes 32 bytes against 40 for an AVLTree node, 20% less.
+ * @param <E> the type of the values stored in the tree
+ */
+public class CompactAVLTree<E extends Comparable<? super E>> implements Iterable<E> {
+    // An AVL tree of height h has at least fib(h + 2) - 1 nodes, so no tree with an int size is ever this tall
+    private static final int MAX_HEIGHT = 64;
+
+    private static class Node<E> {
+        E value;
+        Node<E> left;
+        Node<E> right;
+        // The height of the right subtree minus the height of the left, between -1 and 1 outside of rebalancing
+        byte balance;
+
+        Node(E value) {
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return "Node (" + left + ") " + value.toString() + " (" + right + ')';
+        }
+    }
+
+    boolean isNullInTree;
+    // The root node of the tree
+    Node<E> root;
+    int numElements;
+
+    // The nodes passed through on the way down by the current add or remove, and which way it went from each
+    private final Node<E>[] path = (Node<E>[]) new Node<?>[MAX_HEIGHT];
+    private final boolean[] isLeftStep = new boolean[MAX_HEIGHT];
+
+    CompactAVLTree(Collection<E> collection) {
+        addAll(collection);
+    }
+
+    CompactAVLTree() {
+
+    }
+
+    /**
+     * Adds a value to the tree, returning true if it can be added, false otherwise.
+     * After adding, walks back up the path updating balance factors until a subtree's height stops changing,
+     * which after a rotation it always does.
+     * @param value the value to be added to the tree
+     * @return whether the value could be added to the tree
+     */
+    boolean add(E value) {
+        // Handling for the null value which doesn't work with the comparing in the tree
+        if (value == null) {
+            if (isNullInTree) {
+                return false;
+            } else {
+                isNullInTree = true;
+                numElements++;
+                return true;
+            }
+        }
+
+        if (root == null) {
+            root = new Node<>(value);
+            numElements++;
+            return true;
+        }
+
+        int depth = 0;
+        Node<E> node = root;
+        while (node != null) {
+            int comparison = node.value.compareTo(value);
+            if (comparison == 0) {
+                clearPath(depth);
+                return false;
+            }
+            path[depth] = node;
+            isLeftStep[depth] = comparison > 0;
+            depth++;
+            node = comparison > 0 ? node.left : node.right;
+        }
+
+        setChild(depth - 1, new Node<>(value));
+        for (int i = depth - 1; i >= 0; i--) {
+            Node<E> parent = path[i];
+            parent.balance += isLeftStep[i] ? -1 : 1;
+            if (parent.balance == 0) {
+                break;
+            } else if (parent.balance == 2 || parent.balance == -2) {
+                setChild(i - 1, rebalance(parent));
+                break;
+            }
+        }
+        clearPath(depth);
+        numElements++;
+        return true;
+    }
+
+    boolean addAll(Collection<E> collection) {
+        boolean isChanged = false;
+        for (E elem : collection) {
+            isChanged |= add(elem);
+        }
+        return isChanged;
+    }
+
+    /**
+     * Removes a value from the tree, returning true if it was in the tree.
+     * A node with two children takes its successor's value, and the successor's node is removed instead. After
+     * removing, walks back up the path updating balance factors until a subtree's height stops changing.
+     * @param value the value to be removed from the tree
+     * @return whether the value was in the tree
+     */
+    public boolean remove(E value) {
+        // Handle the null case
+        if (value == null) {
+            if (isNullInTree) {
+                isNullInTree = false;
+                numElements--;
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        int depth = 0;
+        Node<E> node = root;
+        while (node != null) {
+            int comparison = node.value.compareTo(value);
+            if (comparison == 0) {
+                break;
+            }
+            path[depth] = node;
+            isLeftStep[depth] = comparison > 0;
+            depth++;
+            node = comparison > 0 ? node.left : node.right;
+        }
+        if (node == null) {
+            clearPath(depth);
+            return false;
+        }
+
+        if (node.left != null && node.right != null) {
+            path[depth] = node;
+            isLeftStep[depth] = false;
+            depth++;
+            Node<E> successor = node.right;
+            while (successor.left != null) {
+                path[depth] = successor;
+                isLeftStep[depth] = true;
+                depth++;
+                successor = successor.left;
+            }
+            node.value = successor.value;
+            node = successor;
+        }
+
+        setChild(depth - 1, node.left != null ? node.left : node.right);
+        for (int i = depth - 1; i >= 0; i--) {
+            Node<E> parent = path[i];
+            parent.balance += isLeftStep[i] ? 1 : -1;
+            if (parent.balance == 1 || parent.balance == -1) {
+                // The subtree is no shorter than it was
+                break;
+            } else if (parent.balance == 2 || parent.balance == -2) {
+                Node<E> top = rebalance(parent);
+                setChild(i - 1, top);
+                if (top.balance != 0) {
+                    break;
+                }
+            }
+        }
+        clearPath(depth);
+        numElements--;
+        return true;
+    }
+
+    boolean contains(E value) {
+        if (value == null) {
+            return isNullInTree;
+        }
+
+        Node<E> node = root;
+        while (node != null) {
+            int comparison = node.value.compareTo(value);
+            if (comparison == 0) {
+                return true;
+            }
+            node = comparison > 0 ? node.left : node.right;
+        }
+        return false;
+    }
+
+    public int size() {
+        return numElements;
+    }
+
+    /**
+     * Replaces the child of a node on the path in the direction the path went from it
+     * @param index the index of the node in the path, -1 to replace the root
+     * @param child the new child
+     */
+    private void setChild(int index, Node<E> child) {
+        if (index < 0) {
+            root = child;
+        } else if (isLeftStep[index]) {
+            path[index].left = child;
+        } else {
+            path[index].right = child;
+        }
+    }
+
+    /**
+     * Drops the references to nodes held in the path, so removed nodes are not kept alive by it
+     * @param depth the number of nodes in the path
+     */
+    private void clearPath(int depth) {
+        Arrays.fill(path, 0, depth, null);
+    }
+
+    /**
+     * Rotates a subtree whose balance factor has reached 2 or -2, choosing a single or double rotation based on
+     * the balance factor of the taller child
+     * @param node the top of the unbalanced subtree
+     * @return the new top of the subtree
+     */
+    private Node<E> rebalance(Node<E> node) {
+        if (node.balance > 0) {
+            if (node.right.balance >= 0) {
+                return rotateLeft(node);
+            } else {
+                return rotateRightLeft(node);
+            }
+        } else {
+            if (node.left.balance <= 0) {
+                return rotateRight(node);
+            } else {
+                return rotateLeftRight(node);
+            }
+        }
+    }
+
+    /**
+     * A single rotation, moving the right child up into place of the node
+     * @param node a node with a balance factor of 2, whose right child's balance factor is 0 or 1
+     * @return the new top of the subtree, with a balance factor of 0 if the subtree got shorter
+     */
+    private Node<E> rotateLeft(Node<E> node) {
+        Node<E> child = node.right;
+        node.right = child.left;
+        child.left = node;
+        if (child.balance == 0) { // Only happens when removing
+            node.balance = 1;
+            child.balance = -1;
+        } else {
+            node.balance = 0;
+            child.balance = 0;
+        }
+        return child;
+    }
+
+    /**
+     * A single rotation, moving the left child up into place of the node
+     * @param node a node with a balance factor of -2, whose left child's balance factor is 0 or -1
+     * @return the new top of the subtree, with a balance factor of 0 if the subtree got shorter
+     */
+    private Node<E> rotateRight(Node<E> node) {
+        Node<E> child = node.left;
+        node.left = child.right;
+        child.right = node;
+        if (child.balance == 0) { // Only happens when removing
+            node.balance = -1;
+            child.balance = 1;
+        } else {
+            node.balance = 0;
+            child.balance = 0;
+        }
+        return child;
+    }
+
+    /**
+     * A double rotation, moving the left child of the right child up to the top of the subtree
+     * @param node a node with a balance factor of 2, whose right child's balance factor is -1
+     * @return the new top of the subtree, which always has a balance factor of 0
+     */
+    private Node<E> rotateRightLeft(Node<E> node) {
+        Node<E> child = node.right;
+        Node<E> grandChild = child.left;
+        child.left = grandChild.right;
+        node.right = grandChild.left;
+        grandChild.left = node;
+        grandChild.right = child;
+        node.balance = (byte) (grandChild.balance > 0 ? -1 : 0);
+        child.balance = (byte) (grandChild.balance < 0 ? 1 : 0);
+        grandChild.balance = 0;
+        return grandChild;
+    }
+
+    /**
+     * A double rotation, moving the right child of the left child up to the top of the subtree
+     * @param node a node with a balance factor of -2, whose left child's balance factor is 1
+     * @return the new top of the subtree, which always has a balance factor of 0
+     */
+    private Node<E> rotateLeftRight(Node<E> node) {
+        Node<E> child = node.left;
+        Node<E> grandChild = child.right;
+        child.right = grandChild.left;
+        node.left = grandChild.right;
+        grandChild.right = node;
+        grandChild.left = child;
+        node.balance = (byte) (grandChild.balance < 0 ? 1 : 0);
+        child.balance = (byte) (grandChild.balance > 0 ? -1 : 0);
+        grandChild.balance = 0;
+        return grandChild;
+    }
+
+    /**
+     * Checks whether the tree is balanced, by working out the height of every subtree
+     * Balanced here means that every node's subtrees differ in height by at most 1, and that every stored balance
+     * factor matches the heights
+     * @return whether the tree is balanced by AVL Standards
+     */
+    public boolean isBalanced() {
+        return checkedHeight(root) >= 0;
+    }
+
+    /**
+     * @param node a nullable node
+     * @return the height of the subtree, or -1 if it is not balanced
+     */
+    private int checkedHeight(Node<E> node) {
+        if (node == null) {
+            return 0;
+        }
+        int leftHeight = checkedHeight(node.left);
+        int rightHeight = checkedHeight(node.right);
+        if (leftHeight < 0 || rightHeight < 0) {
+            return -1;
+        }
+        int balance = rightHeight - leftHeight;
+        if (balance < -1 || balance > 1 || balance != node.balance) {
+            return -1;
+        }
+        return Math.max(leftHeight, rightHeight) + 1;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactAVLTree (has null : " + isNullInTree + ") (" + root + ')';
+    }
+
+    /**
+     * Iterates through the values of the tree in ascending order, starting with null if it is in the tree
+     * @return an iterator over the values in the tree
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new TreeIterator();
+    }
+
+    private class TreeIterator implements Iterator<E> {
+        boolean isNullNext = isNullInTree;
+        // The nodes still to be returned whose right subtrees have not been visited, the next one on top
+        final Node<E>[] stack = (Node<E>[]) new Node<?>[MAX_HEIGHT];
+        int stackSize;
+
+        TreeIterator() {
+            pushLeftSpine(root);
+        }
+
+        private void pushLeftSpine(Node<E> node) {
+            while (node != null) {
+                stack[stackSize] = node;
+                stackSize++;
+                node = node.left;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return isNullNext || stackSize > 0;
+        }
+
+        @Override
+        public E next() {
+            if (isNullNext) {
+                isNullNext = false;
+                return null;
+            }
+            if (stackSize == 0) {
+                throw new NoSuchElementException();
+            }
+            stackSize--;
+            Node<E> node = stack[stackSize];
+            stack[stackSize] = null;
+            pushLeftSpine(node.right);
+            return node.value;
+        }
+    }
+}
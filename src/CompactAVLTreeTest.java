@@ -0,0 +1,99 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+class CompactAVLTreeTest {
+    @Test
+    void add() {
+        // Test single rotate
+        CompactAVLTree<Integer> tree = new CompactAVLTree<>();
+        Assertions.assertTrue(tree.add(1));
+        Assertions.assertTrue(tree.add(2));
+        Assertions.assertTrue(tree.add(3));
+        Assertions.assertEquals("CompactAVLTree (has null : false) (Node (Node (null) 1 (null)) 2 (Node (null) 3 (null)))", tree.toString());
+
+        // Test double rotate
+        tree = new CompactAVLTree<>();
+        Assertions.assertTrue(tree.add(3));
+        Assertions.assertTrue(tree.add(1));
+        Assertions.assertTrue(tree.add(2));
+        Assertions.assertEquals("CompactAVLTree (has null : false) (Node (Node (null) 1 (null)) 2 (Node (null) 3 (null)))", tree.toString());
+
+        // Test adding duplicates and null
+        Assertions.assertFalse(tree.add(2));
+        Assertions.assertTrue(tree.add(null));
+        Assertions.assertFalse(tree.add(null));
+        Assertions.assertEquals(4, tree.size());
+
+        // Test the extreme case
+        tree = new CompactAVLTree<>();
+        for (int i = 0; i < 10000; i++) {
+            Assertions.assertTrue(tree.add(i * 7 % 10000));
+        }
+        Assertions.assertTrue(tree.isBalanced());
+        Assertions.assertEquals(10000, tree.size());
+    }
+
+    @Test
+    void delete() {
+        Collection<Integer> collection = new ArrayList<>();
+        collection.add(10);
+        collection.add(5);
+        collection.add(2);
+        collection.add(1);
+        collection.add(15);
+        collection.add(16);
+        collection.add(23);
+        collection.add(24);
+        collection.add(30);
+        collection.add(40);
+        CompactAVLTree<Integer> tree = new CompactAVLTree<>(collection);
+
+        int size = 10;
+        // Remove each, checking that it is balanced after each removal
+        // And that size is correct
+        for (Integer i : collection) {
+            Assertions.assertTrue(tree.remove(i));
+            Assertions.assertFalse(tree.contains(i));
+            size--;
+            Assertions.assertTrue(tree.isBalanced());
+            Assertions.assertEquals(size, tree.size());
+        }
+
+        // Test element not in the tree
+        tree.addAll(collection);
+        Assertions.assertFalse(tree.remove(36));
+        Assertions.assertFalse(tree.remove(null));
+
+        // Test the extreme case
+        tree = new CompactAVLTree<>();
+        IntStream.range(0, 10000).forEach(tree::add);
+        for (int i = 0; i < 10000; i += 2) {
+            Assertions.assertTrue(tree.remove(i));
+        }
+        Assertions.assertTrue(tree.isBalanced());
+        Assertions.assertEquals(5000, tree.size());
+        for (int i = 0; i < 10000; i++) {
+            Assertions.assertEquals(i % 2 == 1, tree.contains(i));
+        }
+    }
+
+    @Test
+    void iterator() {
+        CompactAVLTree<Integer> tree = new CompactAVLTree<>();
+        Assertions.assertFalse(tree.iterator().hasNext());
+
+        tree.addAll(IntStream.range(0, 1000).map(i -> i * 7 % 1000).boxed().collect(Collectors.toList()));
+        tree.add(null);
+        Collection<Integer> values = new ArrayList<>();
+        tree.forEach(values::add);
+        Collection<Integer> expected = new ArrayList<>();
+        expected.add(null);
+        IntStream.range(0, 1000).forEach(expected::add);
+        Assertions.assertEquals(expected, values);
+    }
+}
@@ -0,0 +1,86 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts values to and from bytes, for structures that write their contents out to files or channels.
+ * Codecs only ever see non-null values, the structures keep track of nulls themselves.
+ * @param <E> the type of value the codec handles
+ */
+public interface ElementCodec<E> {
+    /**
+     * @param value a non-null value
+     * @return an upper bound on the number of bytes encode will write for the value
+     */
+    int maxEncodedSize(E value);
+
+    /**
+     * Writes a value at the buffer's position, which has at least maxEncodedSize bytes remaining
+     * @param value a non-null value
+     * @param buffer the buffer to write to
+     */
+    void encode(E value, ByteBuffer buffer);
+
+    /**
+     * Reads a value written by encode from the buffer's position
+     * @param buffer the buffer to read from
+     * @return the decoded value
+     */
+    E decode(ByteBuffer buffer);
+
+    ElementCodec<Integer> INTEGER = new ElementCodec<>() {
+        @Override
+        public int maxEncodedSize(Integer value) {
+            return Integer.BYTES;
+        }
+
+        @Override
+        public void encode(Integer value, ByteBuffer buffer) {
+            buffer.putInt(value);
+        }
+
+        @Override
+        public Integer decode(ByteBuffer buffer) {
+            return buffer.getInt();
+        }
+    };
+
+    ElementCodec<Long> LONG = new ElementCodec<>() {
+        @Override
+        public int maxEncodedSize(Long value) {
+            return Long.BYTES;
+        }
+
+        @Override
+        public void encode(Long value, ByteBuffer buffer) {
+            buffer.putLong(value);
+        }
+
+        @Override
+        public Long decode(ByteBuffer buffer) {
+            return buffer.getLong();
+        }
+    };
+
+    // Strings are written as their UTF-8 length followed by the UTF-8 bytes
+    ElementCodec<String> STRING = new ElementCodec<>() {
+        @Override
+        public int maxEncodedSize(String value) {
+            // A UTF-16 char never takes more than 3 bytes in UTF-8
+            return Integer.BYTES + value.length() * 3;
+        }
+
+        @Override
+        public void encode(String value, ByteBuffer buffer) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+        }
+
+        @Override
+        public String decode(ByteBuffer buffer) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+}
@@ -0,0 +1,122 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collection;
+
+/**
+ * Reads back a stream of values written by an ElementWriter, a chunk at a time
+ * @param <E> the type of the values read
+ */
+final class ElementReader<E> {
+    // The most values worth making room for up front, as the header may claim far more values than the stream holds
+    static final int MAX_PRESIZE = 1 << 16;
+
+    private final ReadableByteChannel channel;
+    private final ElementCodec<E> codec;
+    private final int numValues;
+    private int numRead;
+    private ByteBuffer chunk;
+    private int numInChunk;
+
+    /**
+     * Reads the header of the stream
+     * @param channel the channel to read from
+     * @param codec the codec used to decode the values
+     * @throws IOException if the channel cannot be read from or does not start with a valid header
+     */
+    ElementReader(ReadableByteChannel channel, ElementCodec<E> codec) throws IOException {
+        this.channel = channel;
+        this.codec = codec;
+        ByteBuffer header = Frames.read(channel, null);
+        if (header == null) {
+            throw new IOException("Stream is missing its header");
+        }
+        numValues = header.getInt();
+        if (numValues < 0) {
+            throw new IOException("Stream header has a negative number of values " + numValues);
+        }
+    }
+
+    /**
+     * @return the total number of values in the stream
+     */
+    int size() {
+        return numValues;
+    }
+
+    /**
+     * @return how many values to make room for before reading, which more may need to be made for later
+     */
+    int presize() {
+        return Math.min(numValues, MAX_PRESIZE);
+    }
+
+    /**
+     * Reads the next chunk from the channel, ready to be decoded
+     * @return the number of values in the chunk, 0 once every value has been read
+     * @throws IOException if the channel cannot be read from, or ends or is corrupt before every value is read
+     */
+    int nextChunk() throws IOException {
+        if (numRead == numValues) {
+            return 0;
+        }
+        chunk = Frames.read(channel, chunk);
+        if (chunk == null) {
+            throw new IOException("Stream ended after " + numRead + " of " + numValues + " values");
+        }
+        numInChunk = chunk.getInt();
+        if (numInChunk <= 0 || numInChunk > numValues - numRead) {
+            throw new IOException("Stream has a chunk of " + numInChunk + " values after " + numRead + " of " + numValues);
+        }
+        numRead += numInChunk;
+        return numInChunk;
+    }
+
+    /**
+     * Decodes the chunk just read into an array
+     * @param destination the array to put the values in, from index 0, with room for the whole chunk
+     * @throws IOException if the chunk does not hold exactly the number of values it claims
+     */
+    void decodeChunk(E[] destination) throws IOException {
+        for (int i = 0; i < numInChunk; i++) {
+            destination[i] = decode();
+        }
+        checkChunkEnd();
+    }
+
+    /**
+     * Decodes the chunk just read into a collection
+     * @param destination the collection to add the values to
+     * @throws IOException if the chunk does not hold exactly the number of values it claims
+     */
+    void decodeChunk(Collection<E> destination) throws IOException {
+        for (int i = 0; i < numInChunk; i++) {
+            destination.add(decode());
+        }
+        checkChunkEnd();
+    }
+
+    /**
+     * Decodes the next value in the chunk. A chunk that passed its checksum can still be malformed if it was
+     * written wrongly, which the codec can only report with whatever runtime exception it runs into.
+     * @return the value
+     * @throws IOException if the value could not be decoded
+     */
+    private E decode() throws IOException {
+        try {
+            if (chunk.get() == 0) {
+                return null;
+            }
+            return codec.decode(chunk);
+        } catch (RuntimeException e) {
+            throw new IOException("Stream has a malformed value in the chunk after " + (numRead - numInChunk) + " values", e);
+        }
+    }
+
+    private void checkChunkEnd() throws IOException {
+        if (chunk.hasRemaining()) {
+            throw new IOException("Stream has " + chunk.remaining() + " bytes left over after a chunk of "
+                    + numInChunk + " values");
+        }
+    }
+}
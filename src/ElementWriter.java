@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Streams a known number of values to a channel in chunks, to be read back by an ElementReader.
+ * The stream starts with a frame holding the number of values, followed by frames of up to a chunk's worth of
+ * values each. A chunk is its number of values, then each value as a byte saying whether it is null followed by
+ * the value's encoding if it is not.
+ * @param <E> the type of the values written
+ */
+final class ElementWriter<E> {
+    static final int CHUNK_SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;
+    private final ElementCodec<E> codec;
+    private final int numValues;
+    private int numWritten;
+    private int numInChunk;
+    private final ByteBuffer normalChunk = ByteBuffer.allocate(CHUNK_SIZE);
+    // The buffer the current chunk is built in, only larger than the normal one while writing a value too large for it
+    private ByteBuffer chunk = normalChunk;
+
+    /**
+     * Writes the header of the stream
+     * @param channel the channel to write to
+     * @param codec the codec used to encode the values
+     * @param numValues the number of values that will be written
+     * @throws IOException if the channel cannot be written to
+     */
+    ElementWriter(WritableByteChannel channel, ElementCodec<E> codec, int numValues) throws IOException {
+        this.channel = channel;
+        this.codec = codec;
+        this.numValues = numValues;
+        ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+        header.putInt(numValues);
+        header.flip();
+        Frames.write(channel, header);
+        chunk.putInt(0);
+    }
+
+    /**
+     * Adds a value to the current chunk, writing the chunk out first if the value will not fit in it
+     * @param value the value to write, may be null
+     * @throws IOException if the channel cannot be written to
+     */
+    void write(E value) throws IOException {
+        if (numWritten == numValues) {
+            throw new IllegalStateException("More values written than the " + numValues + " promised");
+        }
+        int size = 1 + (value == null ? 0 : codec.maxEncodedSize(value));
+        if (chunk.remaining() < size) {
+            flushChunk();
+            if (chunk.remaining() < size) {
+                chunk = ByteBuffer.allocate(Integer.BYTES + size);
+                chunk.putInt(0);
+            }
+        }
+        if (value == null) {
+            chunk.put((byte) 0);
+        } else {
+            chunk.put((byte) 1);
+            codec.encode(value, chunk);
+        }
+        numInChunk++;
+        numWritten++;
+    }
+
+    /**
+     * Writes out the last chunk
+     * @throws IOException if the channel cannot be written to
+     */
+    void finish() throws IOException {
+        if (numWritten != numValues) {
+            throw new IllegalStateException("Only " + numWritten + " of the " + numValues + " values promised were written");
+        }
+        flushChunk();
+    }
+
+    private void flushChunk() throws IOException {
+        if (numInChunk > 0) {
+            chunk.putInt(0, numInChunk);
+            chunk.flip();
+            Frames.write(channel, chunk);
+        }
+        chunk = normalChunk;
+        chunk.clear();
+        chunk.putInt(0);
+        numInChunk = 0;
+    }
+}
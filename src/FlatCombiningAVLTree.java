@@ -0,0 +1,254 @@
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe front-end to an AVLTree using flat combining.
+ * Rather than every thread fighting over a lock around the tree, each thread publishes its operation into its own
+ * slot, and whichever thread manages to take the combiner lock applies every pending operation in one batch.
+ * Each batch is sorted by value before being applied, so consecutive operations descend through the same part of
+ * the tree while it is still in cache. Each operation still rebalances on its own rather than once per batch, as
+ * sorted neighbours only share the top few levels of their paths, and adding several values before rebalancing
+ * could unbalance a subtree by more than a single rotation can fix.
+ * Waiting threads spin and yield only briefly before parking, and the combiner unparks them once their results are in, so
+ * waiters never hold on to a CPU the combiner needs when there are more threads than cores.
+ * @param <E> the type of the values stored in the tree
+ */
+public class FlatCombiningAVLTree<E extends Comparable<? super E>> {
+    // Slot states, an operation waiting to be applied or the result of one that has been
+    private static final int EMPTY = 0;
+    private static final int ADD = 1;
+    private static final int REMOVE = 2;
+    private static final int CONTAINS = 3;
+    private static final int RESULT_FALSE = 4;
+    private static final int RESULT_TRUE = 5;
+
+    // How many times the combiner rescans the slots for new requests before giving up the lock
+    private static final int COMBINE_PASSES = 3;
+    // How many times a waiting thread checks for its result before yielding, and then before parking
+    private static final int SPIN_LIMIT = 16;
+    private static final int YIELD_LIMIT = 64;
+
+    private static class Slot<E> {
+        final Thread owner;
+        E value;
+        // Written by the owning thread to publish a request, and by the combiner to publish the result
+        volatile int state;
+        // Set by the owning thread before parking, so the combiner knows to unpark it
+        volatile boolean isParked;
+
+        Slot(Thread owner) {
+            this.owner = owner;
+        }
+    }
+
+    private final AVLTree<E> tree;
+    private final ReentrantLock combinerLock = new ReentrantLock();
+    private final Slot<E>[] slots;
+    private final AtomicInteger numSlots = new AtomicInteger();
+    private final ThreadLocal<Slot<E>> threadSlot = ThreadLocal.withInitial(this::registerSlot);
+    // Only touched while holding the combiner lock
+    private final Slot<E>[] batch;
+    private final Comparator<Slot<E>> batchOrder = Comparator.comparing(slot -> slot.value,
+            Comparator.nullsFirst(Comparator.naturalOrder()));
+
+    /**
+     * Slots are claimed by threads on first use and never released, so once maxThreads distinct threads have used
+     * the tree any further threads bypass combining and take the lock directly
+     * @param maxThreads the number of threads that can take part in combining
+     */
+    FlatCombiningAVLTree(int maxThreads) {
+        tree = new AVLTree<>();
+        slots = (Slot<E>[]) new Slot<?>[maxThreads];
+        batch = (Slot<E>[]) new Slot<?>[maxThreads];
+    }
+
+    FlatCombiningAVLTree() {
+        this(64);
+    }
+
+    FlatCombiningAVLTree(Collection<E> collection) {
+        this();
+        tree.addAll(collection);
+    }
+
+    /**
+     * Adds a value to the tree, returning true if it was not already present
+     * @param value the value to be added to the tree
+     * @return whether the value could be added to the tree
+     */
+    public boolean add(E value) {
+        return execute(ADD, value);
+    }
+
+    /**
+     * Removes a value from the tree, returning true if it was present
+     * @param value the value to be removed from the tree
+     * @return whether the value was in the tree
+     */
+    public boolean remove(E value) {
+        return execute(REMOVE, value);
+    }
+
+    public boolean contains(E value) {
+        return execute(CONTAINS, value);
+    }
+
+    public int size() {
+        combinerLock.lock();
+        try {
+            return tree.size();
+        } finally {
+            unlockCombiner();
+        }
+    }
+
+    /**
+     * Publishes an operation in the calling thread's slot and waits until it has been applied, either by another
+     * thread acting as the combiner or by this one if it manages to take the combiner lock
+     * @param operation the operation to apply to the tree
+     * @param value the value the operation applies to
+     * @return the result of the operation
+     */
+    private boolean execute(int operation, E value) {
+        Slot<E> slot = threadSlot.get();
+        if (slot == null) {
+            // More threads than slots, so fall back on taking the lock directly
+            combinerLock.lock();
+            try {
+                return apply(operation, value);
+            } finally {
+                unlockCombiner();
+            }
+        }
+
+        slot.value = value;
+        slot.state = operation;
+        int numSpins = 0;
+        while (true) {
+            int state = slot.state;
+            if (state >= RESULT_FALSE) {
+                slot.value = null;
+                slot.state = EMPTY;
+                return state == RESULT_TRUE;
+            }
+            if (combinerLock.tryLock()) {
+                try {
+                    combine();
+                } finally {
+                    unlockCombiner();
+                }
+            } else if (numSpins < SPIN_LIMIT) {
+                numSpins++;
+                Thread.onSpinWait();
+            } else if (numSpins < SPIN_LIMIT + YIELD_LIMIT) {
+                numSpins++;
+                Thread.yield();
+            } else {
+                // The combiner checks isParked after publishing results and releasing the lock, and this checks the
+                // state and the lock after setting isParked, so one of them always sees the other and the wakeup
+                // cannot be missed
+                slot.isParked = true;
+                if (slot.state < RESULT_FALSE && combinerLock.isLocked()) {
+                    LockSupport.park(this);
+                }
+                slot.isParked = false;
+            }
+        }
+    }
+
+    /**
+     * Releases the combiner lock, then unparks the owners of the results published while it was held, and the owner
+     * of the first request still pending so it can take the lock and serve the rest.
+     * Waiters are only woken once the lock is free, as a waiter woken while it is held would only find it taken and
+     * park again, taking the CPU from the combiner twice for nothing. Every release of the combiner lock must go
+     * through here, or a waiter that parked while it was held could be left parked.
+     */
+    private void unlockCombiner() {
+        combinerLock.unlock();
+        boolean isPendingWoken = false;
+        int registered = Math.min(numSlots.get(), slots.length);
+        for (int i = 0; i < registered; i++) {
+            Slot<E> slot = slots[i];
+            if (slot != null && slot.isParked) {
+                int state = slot.state;
+                if (state >= RESULT_FALSE) {
+                    LockSupport.unpark(slot.owner);
+                } else if (state != EMPTY && !isPendingWoken) {
+                    LockSupport.unpark(slot.owner);
+                    isPendingWoken = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies every pending operation in the slots, sorted by value, until a pass finds nothing left to do.
+     * Must be called while holding the combiner lock.
+     */
+    private void combine() {
+        for (int pass = 0; pass < COMBINE_PASSES; pass++) {
+            int numPending = 0;
+            int registered = Math.min(numSlots.get(), slots.length);
+            for (int i = 0; i < registered; i++) {
+                Slot<E> slot = slots[i];
+                if (slot != null) {
+                    int state = slot.state;
+                    if (state != EMPTY && state < RESULT_FALSE) {
+                        batch[numPending] = slot;
+                        numPending++;
+                    }
+                }
+            }
+            if (numPending == 0) {
+                return;
+            }
+
+            Arrays.sort(batch, 0, numPending, batchOrder);
+            for (int i = 0; i < numPending; i++) {
+                Slot<E> slot = batch[i];
+                boolean result = apply(slot.state, slot.value);
+                batch[i] = null;
+                slot.state = result ? RESULT_TRUE : RESULT_FALSE;
+            }
+        }
+    }
+
+    private boolean apply(int operation, E value) {
+        switch (operation) {
+            case ADD:
+                return tree.add(value);
+            case REMOVE:
+                return tree.remove(value);
+            default:
+                return tree.contains(value);
+        }
+    }
+
+    /**
+     * Claims a slot for the calling thread the first time it uses the tree
+     * @return the thread's slot, or null if every slot has already been claimed
+     */
+    private Slot<E> registerSlot() {
+        int index = numSlots.getAndIncrement();
+        if (index >= slots.length) {
+            return null;
+        }
+        Slot<E> slot = new Slot<>(Thread.currentThread());
+        slots[index] = slot;
+        return slot;
+    }
+
+    @Override
+    public String toString() {
+        combinerLock.lock();
+        try {
+            return "FlatCombining" + tree;
+        } finally {
+            unlockCombiner();
+        }
+    }
+}
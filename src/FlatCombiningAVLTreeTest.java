@@ -0,0 +1,66 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+class FlatCombiningAVLTreeTest {
+    @Test
+    void singleThread() {
+        FlatCombiningAVLTree<Integer> tree = new FlatCombiningAVLTree<>();
+        Assertions.assertTrue(tree.add(10));
+        Assertions.assertTrue(tree.add(5));
+        Assertions.assertFalse(tree.add(10));
+        Assertions.assertTrue(tree.contains(5));
+        Assertions.assertFalse(tree.contains(7));
+        Assertions.assertTrue(tree.remove(5));
+        Assertions.assertFalse(tree.remove(5));
+        Assertions.assertEquals(1, tree.size());
+
+        // Test null handling
+        Assertions.assertTrue(tree.add(null));
+        Assertions.assertTrue(tree.contains(null));
+        Assertions.assertTrue(tree.remove(null));
+        Assertions.assertEquals(1, tree.size());
+    }
+
+    @Test
+    void concurrent() throws InterruptedException {
+        // More threads than slots, so some of them have to fall back on the lock
+        FlatCombiningAVLTree<Integer> tree = new FlatCombiningAVLTree<>(4);
+        int numThreads = 8;
+        int perThread = 5000;
+        AtomicInteger added = new AtomicInteger();
+        AtomicInteger removed = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            int offset = t * perThread;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    if (tree.add(offset + i)) {
+                        added.incrementAndGet();
+                    }
+                    // Every thread also fights over a shared range of keys
+                    if (tree.add(-(i % 100) - 1)) {
+                        added.incrementAndGet();
+                    }
+                    if (i % 3 == 0 && tree.remove(-(i % 100) - 1)) {
+                        removed.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assertions.assertEquals(added.get() - removed.get(), tree.size());
+        for (int i = 0; i < numThreads * perThread; i++) {
+            Assertions.assertTrue(tree.contains(i));
+        }
+    }
+}
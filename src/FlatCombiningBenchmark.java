@@ -0,0 +1,141 @@
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Compares FlatCombiningAVLTree against a plain lock around an AVLTree, for 1 to 64 threads and a range of mixes
+ * of contains, add and remove. Each run shares a fixed number of operations between the threads over a fixed range
+ * of values, starting from a tree holding half of them, and prints the time taken in milliseconds.
+ */
+final class FlatCombiningBenchmark {
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+    // Percentages of contains and add, with the rest of the operations being removes
+    private static final int[][] MIXES = {{90, 5}, {50, 25}, {10, 45}};
+    private static final int NUM_VALUES = 1 << 16;
+    private static final int NUM_OPERATIONS = 1 << 20;
+    private static final int NUM_WARMUPS = 2;
+
+    private interface Tree {
+        boolean add(Integer value);
+
+        boolean remove(Integer value);
+
+        boolean contains(Integer value);
+    }
+
+    private static class LockedTree implements Tree {
+        private final AVLTree<Integer> tree = new AVLTree<>();
+        private final ReentrantLock lock = new ReentrantLock();
+
+        @Override
+        public boolean add(Integer value) {
+            lock.lock();
+            try {
+                return tree.add(value);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean remove(Integer value) {
+            lock.lock();
+            try {
+                return tree.remove(value);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean contains(Integer value) {
+            lock.lock();
+            try {
+                return tree.contains(value);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static class CombiningTree implements Tree {
+        private final FlatCombiningAVLTree<Integer> tree = new FlatCombiningAVLTree<>();
+
+        @Override
+        public boolean add(Integer value) {
+            return tree.add(value);
+        }
+
+        @Override
+        public boolean remove(Integer value) {
+            return tree.remove(value);
+        }
+
+        @Override
+        public boolean contains(Integer value) {
+            return tree.contains(value);
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        System.out.println("threads\tcontains/add/remove\tlock ms\tcombining ms");
+        for (int[] mix : MIXES) {
+            for (int numThreads : THREAD_COUNTS) {
+                for (int i = 0; i < NUM_WARMUPS; i++) {
+                    run(new LockedTree(), numThreads, mix);
+                    run(new CombiningTree(), numThreads, mix);
+                }
+                long lockMillis = run(new LockedTree(), numThreads, mix);
+                long combiningMillis = run(new CombiningTree(), numThreads, mix);
+                System.out.println(numThreads + "\t" + mix[0] + "/" + mix[1] + "/" + (100 - mix[0] - mix[1]) + "\t"
+                        + lockMillis + "\t" + combiningMillis);
+            }
+        }
+    }
+
+    /**
+     * Fills a tree with every other value, then times the threads working through their share of the operations
+     * @param tree the tree to run against
+     * @param numThreads the number of threads sharing the operations
+     * @param mix the percentages of contains and add
+     * @return the time taken in milliseconds
+     */
+    private static long run(Tree tree, int numThreads, int[] mix) throws InterruptedException {
+        for (int i = 0; i < NUM_VALUES; i += 2) {
+            tree.add(i);
+        }
+
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            SplittableRandom random = new SplittableRandom(t);
+            int numOperations = NUM_OPERATIONS / numThreads;
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < numOperations; i++) {
+                    int operation = random.nextInt(100);
+                    Integer value = random.nextInt(NUM_VALUES);
+                    if (operation < mix[0]) {
+                        tree.contains(value);
+                    } else if (operation < mix[0] + mix[1]) {
+                        tree.add(value);
+                    } else {
+                        tree.remove(value);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return (System.nanoTime() - startTime) / 1_000_000;
+    }
+}
@@ -0,0 +1,88 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes length-prefixed, checksummed frames of bytes on a channel.
+ * A frame is the payload length and the CRC32 of the payload, followed by the payload itself, so a reader can tell
+ * a complete frame from one that was cut off part way through being written.
+ */
+final class Frames {
+    static final int HEADER_SIZE = 2 * Integer.BYTES;
+    // Anything claiming to be larger than this is treated as a corrupt header rather than allocated
+    static final int MAX_PAYLOAD_SIZE = 1 << 28;
+
+    private Frames() {
+
+    }
+
+    /**
+     * Writes the remaining bytes of the payload to the channel as a single frame
+     * @param channel the channel to write to
+     * @param payload the bytes to write, from its position to its limit
+     * @throws IOException if the channel cannot be written to
+     */
+    static void write(WritableByteChannel channel, ByteBuffer payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(payload.remaining());
+        header.putInt((int) crc.getValue());
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        while (payload.hasRemaining()) {
+            channel.write(payload);
+        }
+    }
+
+    /**
+     * Reads the next frame from the channel
+     * @param channel the channel to read from
+     * @param buffer a buffer to read the payload into if it is large enough
+     * @return the payload, ready to be read, or null if the channel ended or the frame is incomplete or corrupt
+     * @throws IOException if the channel cannot be read from
+     */
+    static ByteBuffer read(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (!readFully(channel, header)) {
+            return null;
+        }
+        header.flip();
+        int length = header.getInt();
+        int checksum = header.getInt();
+        if (length < 0 || length > MAX_PAYLOAD_SIZE) {
+            return null;
+        }
+
+        ByteBuffer payload = buffer;
+        if (payload == null || payload.capacity() < length) {
+            payload = ByteBuffer.allocate(length);
+        }
+        payload.clear();
+        payload.limit(length);
+        if (!readFully(channel, payload)) {
+            return null;
+        }
+        payload.flip();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        return payload;
+    }
+
+    private static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
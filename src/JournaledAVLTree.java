@@ -0,0 +1,697 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * A thread-safe AVLTree that records every change in an append-only journal on disk, so it can be rebuilt after a
+ * crash from the last checkpoint and the journal written since.
+ * Changes are applied to the tree and buffered in memory straight away. A background thread writes the buffered
+ * changes out and forces them to disk as a single group, while the next group builds up, so no operation waits for
+ * an fsync of its own. Callers that need to know a change is durable call sync.
+ * Every so often a second background thread starts a new journal and writes the whole tree to a checkpoint, so
+ * recovery only has to replay the changes since the checkpoint.
+ * @param <E> the type of the values stored in the tree
+ */
+public class JournaledAVLTree<E extends Comparable<? super E>> implements Closeable {
+    // Journal record types, with a flag for records of the null value which has no encoding
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte NULL_VALUE = 4;
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    private static final String CHECKPOINT_TEMP_FILE = "checkpoint.tmp";
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String JOURNAL_SUFFIX = ".log";
+
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+    // Writers wait for the flusher rather than buffer more than this
+    private static final int MAX_BATCH_SIZE = 1 << 24;
+    private static final int CHECKPOINT_CHUNK_SIZE = 1 << 16;
+    // The most values copied out of the tree at a time while checkpointing, bounding how long writers wait for it
+    private static final int SNAPSHOT_CHUNK_VALUES = 4096;
+
+    final int CHECKPOINT_INTERVAL;
+    private final ElementCodec<E> codec;
+    private final Path directory;
+
+    // Guards the tree and the buffered changes
+    private final ReentrantLock stateLock = new ReentrantLock();
+    private final Condition hasPending = stateLock.newCondition();
+    private final Condition isFlushed = stateLock.newCondition();
+    private final Condition isCheckpointDue = stateLock.newCondition();
+    private AVLTree<E> tree;
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private long numAppended;
+    private long numDurable;
+    private long numSinceCheckpoint;
+    private boolean isClosed;
+    private IOException flushFailure;
+
+    // Held while writing to the journal, always taken before the state lock
+    private final ReentrantLock ioLock = new ReentrantLock();
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private FileChannel journal;
+    private long generation;
+    private final Thread flusher;
+
+    // Held while checkpointing, so only one checkpoint is written at a time
+    private final ReentrantLock checkpointLock = new ReentrantLock();
+    private final Thread checkpointer;
+    // Why the last checkpoint failed, null once one succeeds. Guarded by the state lock.
+    private IOException checkpointFailure;
+
+    /**
+     * Opens the tree stored in a directory, recovering it from the checkpoint and journal if there are any
+     * @param directory the directory holding the checkpoint and journal, created if it does not exist
+     * @param codec the codec used to write values to disk
+     * @param checkpointInterval the number of changes after which the tree is checkpointed
+     * @throws IOException if the directory cannot be read or the journal cannot be opened
+     */
+    JournaledAVLTree(Path directory, ElementCodec<E> codec, int checkpointInterval) throws IOException {
+        this.directory = directory;
+        this.codec = codec;
+        CHECKPOINT_INTERVAL = checkpointInterval;
+        Files.createDirectories(directory);
+        recover();
+        flusher = new Thread(this::runFlusher, "journal-flusher-" + directory.getFileName());
+        flusher.setDaemon(true);
+        flusher.start();
+        checkpointer = new Thread(this::runCheckpointer, "journal-checkpointer-" + directory.getFileName());
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    JournaledAVLTree(Path directory, ElementCodec<E> codec) throws IOException {
+        this(directory, codec, 1 << 20);
+    }
+
+    /**
+     * Adds a value to the tree, and records the change in the journal if it was added
+     * @param value the value to be added to the tree
+     * @return whether the value could be added to the tree
+     */
+    public boolean add(E value) {
+        stateLock.lock();
+        try {
+            awaitCapacity();
+            boolean isAdded = tree.add(value);
+            if (isAdded) {
+                append(ADD, value);
+            }
+            return isAdded;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Removes a value from the tree, and records the change in the journal if it was removed
+     * @param value the value to be removed from the tree
+     * @return whether the value was in the tree
+     */
+    public boolean remove(E value) {
+        stateLock.lock();
+        try {
+            awaitCapacity();
+            boolean isRemoved = tree.remove(value);
+            if (isRemoved) {
+                append(REMOVE, value);
+            }
+            return isRemoved;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    public boolean contains(E value) {
+        stateLock.lock();
+        try {
+            return tree.contains(value);
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    public int size() {
+        stateLock.lock();
+        try {
+            return tree.size();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until every change made before the call has been forced to disk
+     * @throws IOException if the journal could not be written
+     */
+    public void sync() throws IOException {
+        stateLock.lock();
+        try {
+            long target = numAppended;
+            while (numDurable < target && flushFailure == null) {
+                hasPending.signal();
+                isFlushed.awaitUninterruptibly();
+            }
+            if (flushFailure != null) {
+                throw flushFailure;
+            }
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Buffers a change to be written by the flusher. Must be called while holding the state lock, after
+     * awaitCapacity.
+     * @param type the type of change
+     * @param value the value that was changed
+     */
+    private void append(byte type, E value) {
+        int size = 1 + (value == null ? 0 : codec.maxEncodedSize(value));
+        if (pending.remaining() < size) {
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + size));
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        boolean wasEmpty = pending.position() == 0;
+        if (value == null) {
+            pending.put((byte) (type | NULL_VALUE));
+        } else {
+            pending.put(type);
+            codec.encode(value, pending);
+        }
+        numAppended++;
+        numSinceCheckpoint++;
+        if (wasEmpty) {
+            hasPending.signal();
+        }
+        if (numSinceCheckpoint == CHECKPOINT_INTERVAL) {
+            isCheckpointDue.signal();
+        }
+    }
+
+    /**
+     * Waits while too many changes are buffered, then checks the tree can still be changed. The tree may have been
+     * closed or failed during the wait, and the flusher may be gone, so the check must come after it. Must be called
+     * while holding the state lock, which must then be held until the change has been appended.
+     */
+    private void awaitCapacity() {
+        while (pending.position() >= MAX_BATCH_SIZE && flushFailure == null && !isClosed) {
+            isFlushed.awaitUninterruptibly();
+        }
+        checkUsable();
+    }
+
+    private void checkUsable() {
+        if (isClosed) {
+            throw new IllegalStateException("Journaled tree is closed");
+        }
+        if (flushFailure != null) {
+            throw new UncheckedIOException("Journal could not be written", flushFailure);
+        }
+    }
+
+    /**
+     * Swaps the buffered changes out for the spare buffer.
+     * Must be called while holding both the io lock and the state lock.
+     * @return the buffered changes, ready to be written
+     */
+    private ByteBuffer takePending() {
+        ByteBuffer batch = pending;
+        batch.flip();
+        pending = spare;
+        spare = batch;
+        return batch;
+    }
+
+    private void runFlusher() {
+        try {
+            while (true) {
+                stateLock.lock();
+                try {
+                    while (pending.position() == 0 && !isClosed) {
+                        hasPending.awaitUninterruptibly();
+                    }
+                    if (pending.position() == 0) {
+                        return;
+                    }
+                } finally {
+                    stateLock.unlock();
+                }
+                flush();
+            }
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    private void runCheckpointer() {
+        try {
+            while (true) {
+                stateLock.lock();
+                try {
+                    while (numSinceCheckpoint < CHECKPOINT_INTERVAL && !isClosed && flushFailure == null) {
+                        isCheckpointDue.awaitUninterruptibly();
+                    }
+                    if (isClosed || flushFailure != null) {
+                        return;
+                    }
+                } finally {
+                    stateLock.unlock();
+                }
+                // The journal still holds every change, so a failed checkpoint only costs a longer recovery, and is
+                // tried again once another interval of changes has built up
+                try {
+                    checkpoint();
+                } catch (IOException e) {
+                    // Recorded by checkpoint
+                }
+            }
+        } catch (Throwable e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * @return why the last checkpoint failed, or null if it succeeded
+     */
+    IOException checkpointFailure() {
+        stateLock.lock();
+        try {
+            return checkpointFailure;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Records that a background thread has died, waking everything waiting on it so that they fail rather than
+     * waiting forever
+     * @param e what the thread died of
+     */
+    private void fail(Throwable e) {
+        stateLock.lock();
+        try {
+            if (flushFailure == null) {
+                flushFailure = e instanceof IOException ? (IOException) e : new IOException("Journal thread failed", e);
+            }
+            hasPending.signalAll();
+            isFlushed.signalAll();
+            isCheckpointDue.signalAll();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffered changes to the journal as a single frame and forces them to disk
+     * @throws IOException if the journal could not be written
+     */
+    private void flush() throws IOException {
+        ioLock.lock();
+        try {
+            ByteBuffer batch;
+            long numInBatch;
+            stateLock.lock();
+            try {
+                batch = takePending();
+                numInBatch = numAppended;
+            } finally {
+                stateLock.unlock();
+            }
+            if (batch.hasRemaining()) {
+                Frames.write(journal, batch);
+                journal.force(false);
+            }
+            batch.clear();
+            markDurable(numInBatch);
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    private void markDurable(long numInBatch) {
+        stateLock.lock();
+        try {
+            numDurable = numInBatch;
+            isFlushed.signalAll();
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a new journal and writes the whole tree to a checkpoint, deleting the old journals once the checkpoint
+     * is in place.
+     * The tree is copied a chunk at a time, only holding the state lock for each chunk, so the checkpoint is fuzzy:
+     * a value changed while it is being copied may be caught before or after the change. That change is in the new
+     * journal though, and replaying an add or remove leaves the value in the same state whatever state it started
+     * in, so the checkpoint plus the new journal always rebuilds the tree exactly.
+     * If only the checkpoint could not be written, the previous checkpoint and the journals since are left in place
+     * and the tree can still be changed. If the journal could not be switched, the tree fails as for any other
+     * journal write.
+     * @throws IOException if the checkpoint or journal could not be written
+     */
+    public void checkpoint() throws IOException {
+        checkpointLock.lock();
+        try {
+            long checkpointGeneration = startGeneration();
+            IOException failure = null;
+            try {
+                writeCheckpoint(checkpointGeneration);
+                syncDirectory();
+                deleteJournalsBefore(checkpointGeneration);
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException e) {
+                failure = new IOException("Checkpoint could not be written", e);
+            }
+            stateLock.lock();
+            try {
+                checkpointFailure = failure;
+            } finally {
+                stateLock.unlock();
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the buffered changes to the current journal, then switches to a new journal for every change after it
+     * @return the generation of the new journal
+     * @throws IOException if the old journal could not be written or the new one created, which fails the tree
+     */
+    private long startGeneration() throws IOException {
+        ioLock.lock();
+        try {
+            ByteBuffer batch;
+            long numInBatch;
+            stateLock.lock();
+            try {
+                batch = takePending();
+                numInBatch = numAppended;
+                numSinceCheckpoint = 0;
+            } finally {
+                stateLock.unlock();
+            }
+
+            if (batch.hasRemaining()) {
+                Frames.write(journal, batch);
+            }
+            batch.clear();
+            journal.force(false);
+            journal.close();
+            generation++;
+            journal = FileChannel.open(journalPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            // Changes flushed to the new journal are only durable once its directory entry is
+            syncDirectory();
+            markDurable(numInBatch);
+            return generation;
+        } catch (Throwable e) {
+            // Buffered changes may have been taken and not written, so this is a journal failure, not a checkpoint one
+            fail(e);
+            throw e;
+        } finally {
+            ioLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the tree to a temporary file and then moves it over the checkpoint, so a crash part way through
+     * leaves the previous checkpoint in place. The checkpoint is a header frame holding the generation of the
+     * journal that follows it and whether null is in the tree, followed by frames of values in ascending order,
+     * each starting with how many values it holds, and ending with an empty frame.
+     * @param checkpointGeneration the generation of the journal that follows the checkpoint
+     * @throws IOException if the checkpoint could not be written
+     */
+    private void writeCheckpoint(long checkpointGeneration) throws IOException {
+        Path tempPath = directory.resolve(CHECKPOINT_TEMP_FILE);
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(CHECKPOINT_CHUNK_SIZE);
+            buffer.putLong(checkpointGeneration);
+            buffer.put((byte) (contains(null) ? 1 : 0));
+            buffer.flip();
+            Frames.write(channel, buffer);
+
+            List<E> values = new ArrayList<>(SNAPSHOT_CHUNK_VALUES);
+            E lastValue = null;
+            while (copyValuesAfter(lastValue, values)) {
+                lastValue = values.get(values.size() - 1);
+                writeValues(channel, buffer, values);
+                values.clear();
+            }
+
+            buffer.clear();
+            buffer.putInt(0);
+            buffer.flip();
+            Frames.write(channel, buffer);
+            channel.force(true);
+        }
+        Files.move(tempPath, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Copies the next chunk of non-null values out of the tree, holding the state lock only while copying
+     * @param lastValue the last value copied so far, null to start from the smallest
+     * @param values the list to add the values to
+     * @return whether any values were copied
+     */
+    private boolean copyValuesAfter(E lastValue, List<E> values) {
+        stateLock.lock();
+        try {
+            Iterator<E> iterator = lastValue == null ? tree.iterator() : tree.iteratorAfter(lastValue);
+            while (iterator.hasNext() && values.size() < SNAPSHOT_CHUNK_VALUES) {
+                E value = iterator.next();
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        return !values.isEmpty();
+    }
+
+    /**
+     * Writes values to the checkpoint as frames, each starting with the number of values in it
+     * @param channel the checkpoint being written
+     * @param buffer the buffer to encode frames in
+     * @param values the values to write
+     * @throws IOException if the checkpoint could not be written
+     */
+    private void writeValues(FileChannel channel, ByteBuffer buffer, List<E> values) throws IOException {
+        int index = 0;
+        while (index < values.size()) {
+            ByteBuffer frame = buffer;
+            int size = codec.maxEncodedSize(values.get(index));
+            if (Integer.BYTES + size > frame.capacity()) {
+                // A value too large for the normal buffer goes in a frame of its own
+                frame = ByteBuffer.allocate(Integer.BYTES + size);
+            }
+            frame.clear();
+            frame.putInt(0);
+            int numInFrame = 0;
+            while (index < values.size() && frame.remaining() >= size) {
+                codec.encode(values.get(index), frame);
+                numInFrame++;
+                index++;
+                if (index < values.size()) {
+                    size = codec.maxEncodedSize(values.get(index));
+                }
+            }
+            frame.putInt(0, numInFrame);
+            frame.flip();
+            Frames.write(channel, frame);
+        }
+    }
+
+    /**
+     * Forces the directory itself to disk, so files created or renamed in it survive a crash
+     * @throws IOException if the directory could not be forced
+     */
+    private void syncDirectory() throws IOException {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Rebuilds the tree from the checkpoint in linear time, then replays every journal from the checkpoint's
+     * generation onwards. If the newest journal ends in an incomplete or corrupt frame, from a crash part way
+     * through a write, it is cut back to the last complete frame. Older journals were forced to disk before the next
+     * one was started, so a bad frame in one of them means the journal is damaged rather than torn.
+     * @throws IOException if the checkpoint or journals could not be read, or an older journal is damaged
+     */
+    private void recover() throws IOException {
+        tree = new AVLTree<>();
+        generation = 0;
+        Path checkpointPath = directory.resolve(CHECKPOINT_FILE);
+        if (Files.exists(checkpointPath)) {
+            readCheckpoint(checkpointPath);
+        }
+        deleteJournalsBefore(generation);
+
+        List<Long> journalGenerations = journalGenerations();
+        for (long journalGeneration : journalGenerations) {
+            boolean isNewest = journalGeneration == journalGenerations.get(journalGenerations.size() - 1);
+            try (FileChannel channel = FileChannel.open(journalPath(journalGeneration), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                long validLength = 0;
+                ByteBuffer payload = null;
+                while ((payload = Frames.read(channel, payload)) != null) {
+                    replay(payload);
+                    validLength = channel.position();
+                }
+                if (channel.size() > validLength) {
+                    if (!isNewest) {
+                        throw new IOException("Journal " + journalGeneration + " is damaged after byte " + validLength
+                                + ", but is not the newest journal");
+                    }
+                    channel.truncate(validLength);
+                }
+            }
+            generation = Math.max(generation, journalGeneration);
+        }
+
+        journal = FileChannel.open(journalPath(generation), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
+        syncDirectory();
+    }
+
+    private void readCheckpoint(Path checkpointPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(checkpointPath, StandardOpenOption.READ)) {
+            ByteBuffer header = Frames.read(channel, null);
+            if (header == null) {
+                throw new IOException("Checkpoint header is corrupt");
+            }
+            generation = header.getLong();
+            List<E> values = new ArrayList<>();
+            if (header.get() != 0) {
+                values.add(null);
+            }
+
+            ByteBuffer payload = null;
+            while (true) {
+                payload = Frames.read(channel, payload);
+                if (payload == null) {
+                    throw new IOException("Checkpoint ends before its last frame");
+                }
+                int numInFrame = payload.getInt();
+                if (numInFrame == 0) {
+                    break;
+                }
+                for (int i = 0; i < numInFrame; i++) {
+                    values.add(codec.decode(payload));
+                }
+            }
+            tree = AVLTree.fromSorted(values);
+        }
+    }
+
+    private void replay(ByteBuffer payload) {
+        while (payload.hasRemaining()) {
+            byte type = payload.get();
+            E value = (type & NULL_VALUE) != 0 ? null : codec.decode(payload);
+            if ((type & ~NULL_VALUE) == ADD) {
+                tree.add(value);
+            } else {
+                tree.remove(value);
+            }
+        }
+    }
+
+    private Path journalPath(long journalGeneration) {
+        return directory.resolve(JOURNAL_PREFIX + journalGeneration + JOURNAL_SUFFIX);
+    }
+
+    /**
+     * @return the generations of the journals in the directory, in ascending order
+     * @throws IOException if the directory could not be listed
+     */
+    private List<Long> journalGenerations() throws IOException {
+        try (Stream<Path> paths = Files.list(directory)) {
+            return paths.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(JOURNAL_PREFIX) && name.endsWith(JOURNAL_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(JOURNAL_PREFIX.length(),
+                            name.length() - JOURNAL_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private void deleteJournalsBefore(long firstKept) throws IOException {
+        for (long journalGeneration : journalGenerations()) {
+            if (journalGeneration < firstKept) {
+                Files.deleteIfExists(journalPath(journalGeneration));
+            }
+        }
+    }
+
+    /**
+     * Flushes any buffered changes and closes the journal. The tree cannot be changed afterwards.
+     * @throws IOException if the last changes could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        stateLock.lock();
+        try {
+            if (isClosed) {
+                return;
+            }
+            isClosed = true;
+            hasPending.signal();
+            isFlushed.signalAll();
+            isCheckpointDue.signal();
+        } finally {
+            stateLock.unlock();
+        }
+
+        try {
+            checkpointer.join();
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        ioLock.lock();
+        try {
+            journal.close();
+        } finally {
+            ioLock.unlock();
+        }
+        if (flushFailure != null) {
+            throw flushFailure;
+        }
+    }
+
+    @Override
+    public String toString() {
+        stateLock.lock();
+        try {
+            return "Journaled" + tree;
+        } finally {
+            stateLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+class JournaledAVLTreeTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void recoverFromJournal() throws IOException {
+        try (JournaledAVLTree<Integer> tree = new JournaledAVLTree<>(directory, ElementCodec.INTEGER)) {
+            for (int i = 0; i < 1000; i++) {
+                Assertions.assertTrue(tree.add(i));
+            }
+            for (int i = 0; i < 1000; i += 2) {
+                Assertions.assertTrue(tree.remove(i));
+            }
+            Assertions.assertTrue(tree.add(null));
+            Assertions.assertFalse(tree.add(1));
+            tree.sync();
+        }
+
+        // Test every change is replayed from the journal
+        try (JournaledAVLTree<Integer> tree = new JournaledAVLTree<>(directory, ElementCodec.INTEGER)) {
+            Assertions.assertEquals(501, tree.size());
+            Assertions.assertTrue(tree.contains(null));
+            for (int i = 0; i < 1000; i++) {
+                Assertions.assertEquals(i % 2 == 1, tree.contains(i));
+            }
+        }
+    }
+
+    @Test
+    void recoverFromCheckpoint() throws IOException {
+        // Checkpoint every 100 changes, leaving some changes in the journal after the last one
+        try (JournaledAVLTree<String> tree = new JournaledAVLTree<>(directory, ElementCodec.STRING, 100)) {
+            for (int i = 0; i < 1050; i++) {
+                tree.add("value " + i);
+            }
+            tree.remove("value 7");
+            tree.checkpoint();
+            tree.remove("value 8");
+        }
+        Assertions.assertTrue(Files.exists(directory.resolve("checkpoint")));
+
+        try (JournaledAVLTree<String> tree = new JournaledAVLTree<>(directory, ElementCodec.STRING, 100)) {
+            Assertions.assertEquals(1048, tree.size());
+            Assertions.assertTrue(tree.contains("value 1049"));
+            Assertions.assertFalse(tree.contains("value 7"));
+            Assertions.assertFalse(tree.contains("value 8"));
+        }
+    }
+
+    @Test
+    void checkpointFailure() throws IOException {
+        // A directory in the way of the temporary checkpoint file makes every checkpoint fail
+        Files.createDirectory(directory.resolve("checkpoint.tmp"));
+        try (JournaledAVLTree<Integer> tree = new JournaledAVLTree<>(directory, ElementCodec.INTEGER, 100)) {
+            for (int i = 0; i < 1000; i++) {
+                Assertions.assertTrue(tree.add(i));
+            }
+            Assertions.assertThrows(IOException.class, tree::checkpoint);
+            Assertions.assertNotNull(tree.checkpointFailure());
+
+            // Test the journal carries on regardless
+            Assertions.assertTrue(tree.remove(0));
+            tree.sync();
+            Assertions.assertEquals(999, tree.size());
+        }
+        Assertions.assertFalse(Files.exists(directory.resolve("checkpoint")));
+
+        // Test the journals were kept, and a checkpoint succeeds once the way is clear
+        Files.delete(directory.resolve("checkpoint.tmp"));
+        try (JournaledAVLTree<Integer> tree = new JournaledAVLTree<>(directory, ElementCodec.INTEGER, 100)) {
+            Assertions.assertEquals(999, tree.size());
+            Assertions.assertFalse(tree.contains(0));
+            tree.checkpoint();
+            Assertions.assertNull(tree.checkpointFailure());
+        }
+        Assertions.assertTrue(Files.exists(directory.resolve("checkpoint")));
+    }
+
+    @Test
+    void recoverFromTornWrite() throws IOException {
+        try (JournaledAVLTree<Integer> tree = new JournaledAVLTree<>(directory, ElementCodec.INTEGER)) {
+            tree.add(1);
+            tree.add(2);
+        }
+
+        // Simulate a crash part way through writing a frame
+        Path journalPath = directory.resolve("journal-0.log");
+        long validLength = Files.size(journalPath);
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 100, 1, 2, 3}));
+        }
+
+        try (JournaledAVLTree<Integer> tree = new JournaledAVLTree<>(directory, ElementCodec.INTEGER)) {
+            Assertions.assertEquals(validLength, Files.size(journalPath));
+            Assertions.assertEquals(2, tree.size());
+            tree.add(3);
+        }
+        try (JournaledAVLTree<Integer> tree = new JournaledAVLTree<>(directory, ElementCodec.INTEGER)) {
+            Assertions.assertEquals(3, tree.size());
+            Assertions.assertTrue(tree.contains(3));
+        }
+
+        // Test a bad frame in a journal that is not the newest is reported rather than cut off
+        Files.createFile(directory.resolve("journal-1.log"));
+        try (FileChannel channel = FileChannel.open(journalPath, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {0, 0, 0, 100, 1, 2, 3}));
+        }
+        Assertions.assertThrows(IOException.class, () -> new JournaledAVLTree<>(directory, ElementCodec.INTEGER));
+    }
+}
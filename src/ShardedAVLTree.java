@@ -0,0 +1,381 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe ordered set that splits the range of values across a number of independent AVLTrees, each with its
+ * own lock, so writers working on different parts of the range never contend with each other.
+ * A shard that grows past the maximum shard size is split in half, and one that shrinks below a quarter of it is
+ * merged into its smaller neighbour, so the shards follow the distribution of the values without manual tuning.
+ * @param <E> the type of the values stored in the tree
+ */
+public class ShardedAVLTree<E extends Comparable<? super E>> implements Iterable<E> {
+    private static class Shard<E extends Comparable<? super E>> {
+        // The smallest value that can be stored in this shard, null for the first shard which is unbounded below
+        final E lowerBound;
+        final AVLTree<E> tree;
+        final ReentrantLock lock = new ReentrantLock();
+        // The size of the tree, readable without taking the lock to decide whether the shard needs resizing
+        volatile int size;
+        // Set while holding the lock once the shard has been replaced by a split or merge
+        boolean isRetired;
+
+        Shard(E lowerBound, AVLTree<E> tree) {
+            this.lowerBound = lowerBound;
+            this.tree = tree;
+            size = tree.size();
+        }
+    }
+
+    final int MAX_SHARD_SIZE;
+    final int MIN_SHARD_SIZE;
+
+    // The shards in ascending order of their lower bounds. Never changed in place, but replaced with a new array
+    // when shards are split or merged, so operations can find their shard without taking a shared lock.
+    private volatile Shard<E>[] shards;
+    // Held while splitting or merging, so only one resize happens at a time
+    private final ReentrantLock resizeLock = new ReentrantLock();
+    private final AtomicBoolean isNullInTree = new AtomicBoolean();
+    private final LongAdder numElements = new LongAdder();
+
+    /**
+     * @param maxShardSize the size past which a shard is split in half, at least 2 so both halves hold a value
+     */
+    ShardedAVLTree(int maxShardSize) {
+        if (maxShardSize < 2) {
+            throw new IllegalArgumentException("Maximum shard size must be at least 2, not " + maxShardSize);
+        }
+        MAX_SHARD_SIZE = maxShardSize;
+        MIN_SHARD_SIZE = maxShardSize / 4;
+        shards = newShards(1);
+        shards[0] = new Shard<E>(null, new AVLTree<>());
+    }
+
+    ShardedAVLTree() {
+        this(1 << 16);
+    }
+
+    ShardedAVLTree(Collection<E> collection) {
+        this();
+        addAll(collection);
+    }
+
+    /**
+     * Adds a value to the shard covering it, splitting the shard afterwards if it has grown too large
+     * @param value the value to be added to the tree
+     * @return whether the value could be added to the tree
+     */
+    public boolean add(E value) {
+        if (value == null) {
+            if (isNullInTree.compareAndSet(false, true)) {
+                numElements.increment();
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        boolean isAdded;
+        Shard<E> shard = lockShard(value);
+        try {
+            isAdded = shard.tree.add(value);
+            shard.size = shard.tree.size();
+        } finally {
+            shard.lock.unlock();
+        }
+
+        if (isAdded) {
+            numElements.increment();
+        }
+        if (shard.size > MAX_SHARD_SIZE) {
+            resizeShard(value);
+        }
+        return isAdded;
+    }
+
+    boolean addAll(Collection<E> collection) {
+        boolean isChanged = false;
+        for (E elem : collection) {
+            isChanged |= add(elem);
+        }
+        return isChanged;
+    }
+
+    /**
+     * Removes a value from the shard covering it, merging the shard into a neighbour afterwards if it has become
+     * too small
+     * @param value the value to be removed from the tree
+     * @return whether the value was in the tree
+     */
+    public boolean remove(E value) {
+        if (value == null) {
+            if (isNullInTree.compareAndSet(true, false)) {
+                numElements.decrement();
+                return true;
+            } else {
+                return false;
+            }
+        }
+
+        boolean isRemoved;
+        Shard<E> shard = lockShard(value);
+        try {
+            isRemoved = shard.tree.remove(value);
+            shard.size = shard.tree.size();
+        } finally {
+            shard.lock.unlock();
+        }
+
+        if (isRemoved) {
+            numElements.decrement();
+        }
+        if (shard.size < MIN_SHARD_SIZE && canMerge(shards, value)) {
+            resizeShard(value);
+        }
+        return isRemoved;
+    }
+
+    public boolean contains(E value) {
+        if (value == null) {
+            return isNullInTree.get();
+        }
+
+        Shard<E> shard = lockShard(value);
+        try {
+            return shard.tree.contains(value);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    public int size() {
+        return (int) numElements.sum();
+    }
+
+    int numShards() {
+        return shards.length;
+    }
+
+    /**
+     * Finds and locks the shard covering a value, trying again if the shard is retired by a split or merge before
+     * the lock is taken
+     * @param value a non-null value
+     * @return the locked shard, which the caller must unlock
+     */
+    private Shard<E> lockShard(E value) {
+        while (true) {
+            Shard<E>[] current = shards;
+            Shard<E> shard = current[findShard(current, value)];
+            shard.lock.lock();
+            if (!shard.isRetired) {
+                return shard;
+            }
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Finds the shard whose range covers a value, by binary searching the lower bounds of the shards
+     * @param current the shards to search
+     * @param value a non-null value
+     * @return the index of the last shard with a lower bound no larger than the value
+     */
+    private int findShard(Shard<E>[] current, E value) {
+        // The first shard is unbounded below, so the answer is always at least 0
+        int low = 0;
+        int high = current.length - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (current[middle].lowerBound.compareTo(value) <= 0) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds which neighbour the shard at an index should be merged into
+     * @param current the shards
+     * @param index the index of the shard to merge, in an array of at least two shards
+     * @return the index of the smaller neighbour
+     */
+    private int mergeNeighbour(Shard<E>[] current, int index) {
+        if (index == 0) {
+            return 1;
+        } else if (index == current.length - 1) {
+            return index - 1;
+        } else if (current[index - 1].size < current[index + 1].size) {
+            return index - 1;
+        } else {
+            return index + 1;
+        }
+    }
+
+    /**
+     * Checks whether the shard covering a value could be merged into its smaller neighbour without the merged shard
+     * needing splitting again, so a shard stuck next to a large neighbour does not take the resize lock on every
+     * remove, only once the neighbour has shrunk enough
+     * @param current the shards
+     * @param value a value in the range of the shard to merge
+     * @return whether the merge is worth trying
+     */
+    private boolean canMerge(Shard<E>[] current, E value) {
+        if (current.length < 2) {
+            return false;
+        }
+        int index = findShard(current, value);
+        return current[index].size + current[mergeNeighbour(current, index)].size <= MAX_SHARD_SIZE;
+    }
+
+    /**
+     * Splits the shard covering a value if it is too large, or merges it into its smaller neighbour if it is too
+     * small. The shards being replaced are locked while they are copied, then marked as retired and the new array
+     * of shards published before they are unlocked, so no change to them can be lost.
+     * @param value a value in the range of the shard to resize
+     */
+    private void resizeShard(E value) {
+        resizeLock.lock();
+        try {
+            Shard<E>[] current = shards;
+            int index = findShard(current, value);
+            Shard<E> shard = current[index];
+            if (shard.size > MAX_SHARD_SIZE) {
+                shard.lock.lock();
+                try {
+                    List<E> values = toList(shard.tree);
+                    int middle = values.size() / 2;
+                    Shard<E>[] replacement = newShards(current.length + 1);
+                    System.arraycopy(current, 0, replacement, 0, index);
+                    replacement[index] = new Shard<>(shard.lowerBound, AVLTree.fromSorted(values.subList(0, middle)));
+                    replacement[index + 1] = new Shard<>(values.get(middle),
+                            AVLTree.fromSorted(values.subList(middle, values.size())));
+                    System.arraycopy(current, index + 1, replacement, index + 2, current.length - index - 1);
+                    shard.isRetired = true;
+                    shards = replacement;
+                } finally {
+                    shard.lock.unlock();
+                }
+            } else if (shard.size < MIN_SHARD_SIZE && canMerge(current, value)) {
+                int lowerIndex = Math.min(index, mergeNeighbour(current, index));
+                Shard<E> lower = current[lowerIndex];
+                Shard<E> upper = current[lowerIndex + 1];
+                // Always locked in ascending order
+                lower.lock.lock();
+                upper.lock.lock();
+                try {
+                    List<E> values = toList(lower.tree);
+                    values.addAll(toList(upper.tree));
+                    Shard<E>[] replacement = newShards(current.length - 1);
+                    System.arraycopy(current, 0, replacement, 0, lowerIndex);
+                    replacement[lowerIndex] = new Shard<>(lower.lowerBound, AVLTree.fromSorted(values));
+                    System.arraycopy(current, lowerIndex + 2, replacement, lowerIndex + 1,
+                            current.length - lowerIndex - 2);
+                    lower.isRetired = true;
+                    upper.isRetired = true;
+                    shards = replacement;
+                } finally {
+                    upper.lock.unlock();
+                    lower.lock.unlock();
+                }
+            }
+        } finally {
+            resizeLock.unlock();
+        }
+    }
+
+    private Shard<E>[] newShards(int length) {
+        return (Shard<E>[]) new Shard<?>[length];
+    }
+
+    private List<E> toList(AVLTree<E> tree) {
+        ArrayList<E> values = new ArrayList<>(tree.size());
+        tree.forEach(values::add);
+        return values;
+    }
+
+    /**
+     * Iterates through the values in ascending order, starting with null if it is in the tree.
+     * The iterator is weakly consistent, copying one shard at a time, so it never blocks writers for long and
+     * reflects any changes made to shards it has not reached yet.
+     * @return an iterator over the values in the tree
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new ShardIterator();
+    }
+
+    private class ShardIterator implements Iterator<E> {
+        boolean isNullNext = isNullInTree.get();
+        List<E> chunk = new ArrayList<>();
+        int chunkIndex;
+        // The last value returned from a shard, null until the first shard has been copied
+        E lastValue;
+        boolean isFinished;
+
+        @Override
+        public boolean hasNext() {
+            if (isNullNext) {
+                return true;
+            }
+            while (chunkIndex >= chunk.size() && !isFinished) {
+                loadNextChunk();
+            }
+            return chunkIndex < chunk.size();
+        }
+
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (isNullNext) {
+                isNullNext = false;
+                return null;
+            }
+            E value = chunk.get(chunkIndex);
+            chunkIndex++;
+            lastValue = value;
+            return value;
+        }
+
+        /**
+         * Copies the values following the last returned value out of the first shard that has any.
+         * Shards may have been split or merged since the last copy, so the shard is found again by value, and the
+         * search starts over if a shard is retired before it can be copied.
+         */
+        private void loadNextChunk() {
+            chunk = new ArrayList<>();
+            chunkIndex = 0;
+            while (true) {
+                Shard<E>[] current = shards;
+                int index = lastValue == null ? 0 : findShard(current, lastValue);
+                boolean isRetired = false;
+                for (; index < current.length && chunk.isEmpty() && !isRetired; index++) {
+                    Shard<E> shard = current[index];
+                    shard.lock.lock();
+                    try {
+                        isRetired = shard.isRetired;
+                        if (!isRetired) {
+                            Iterator<E> values = lastValue == null ? shard.tree.iterator()
+                                    : shard.tree.iteratorAfter(lastValue);
+                            values.forEachRemaining(chunk::add);
+                        }
+                    } finally {
+                        shard.lock.unlock();
+                    }
+                }
+                if (!isRetired) {
+                    isFinished = chunk.isEmpty();
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+class ShardedAVLTreeTest {
+    @Test
+    void splitAndMerge() {
+        ShardedAVLTree<Integer> tree = new ShardedAVLTree<>(64);
+
+        // Adding past the maximum shard size splits the shards
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertTrue(tree.add(i));
+        }
+        Assertions.assertFalse(tree.add(500));
+        Assertions.assertEquals(1000, tree.size());
+        Assertions.assertTrue(tree.numShards() > 1);
+        for (int i = 0; i < 1000; i++) {
+            Assertions.assertTrue(tree.contains(i));
+        }
+        Assertions.assertFalse(tree.contains(-1));
+        Assertions.assertFalse(tree.contains(1000));
+
+        // Removing most of the values merges the shards back together
+        for (int i = 0; i < 990; i++) {
+            Assertions.assertTrue(tree.remove(i));
+        }
+        Assertions.assertFalse(tree.remove(0));
+        Assertions.assertEquals(10, tree.size());
+        Assertions.assertEquals(1, tree.numShards());
+
+        // Test the smallest shards that can still be split in two
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new ShardedAVLTree<Integer>(1));
+        tree = new ShardedAVLTree<>(2);
+        for (int i = 0; i < 6; i++) {
+            Assertions.assertTrue(tree.add(i));
+        }
+        // Every split leaves a value in both halves, so there are never more shards than values
+        Assertions.assertTrue(tree.numShards() <= tree.size());
+        for (int i = 0; i < 6; i++) {
+            Assertions.assertTrue(tree.contains(i));
+        }
+    }
+
+    @Test
+    void iterator() {
+        ShardedAVLTree<Integer> tree = new ShardedAVLTree<>(16);
+        List<Integer> expected = IntStream.range(0, 500).map(i -> i * 7 % 500).boxed().collect(Collectors.toList());
+        tree.addAll(expected);
+        tree.add(null);
+
+        List<Integer> values = new ArrayList<>();
+        tree.forEach(values::add);
+        Assertions.assertNull(values.get(0));
+        Assertions.assertEquals(IntStream.range(0, 500).boxed().collect(Collectors.toList()),
+                values.subList(1, values.size()));
+    }
+
+    @Test
+    void concurrent() throws InterruptedException {
+        ShardedAVLTree<Integer> tree = new ShardedAVLTree<>(128);
+        int numThreads = 4;
+        int perThread = 5000;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+            int offset = t * perThread;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    tree.add(offset + i);
+                }
+                for (int i = 0; i < perThread; i += 2) {
+                    tree.remove(offset + i);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        Assertions.assertEquals(numThreads * perThread / 2, tree.size());
+        int expected = 1;
+        for (Integer value : tree) {
+            Assertions.assertEquals(expected, value);
+            expected += 2;
+        }
+    }
+}